@@ -0,0 +1,35 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler on, writing results as JSON to
+ * jmh-result.json unless told otherwise, so that runs can be compared
+ * release to release. Takes the usual JMH options, e.g. a benchmark regex
+ * and -p to pick parameters.
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cli = new CommandLineOptions(args);
+		if(cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams()
+				|| cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(cli);
+		options.addProfiler(GCProfiler.class);
+		if(!cli.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if(!cli.getResult().hasValue()) {
+			options.result("jmh-result.json");
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,77 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Compressing and decompressing a Details frame with FrameCompressor, by
+ * member count and deflate level. The compressed size is printed at setup,
+ * so that CPU can be weighed against bandwidth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class CompressionBenchmark {
+	@Param({"10", "100", "1000"})
+	public int members;
+
+	@Param({"" + Deflater.BEST_SPEED, "" + Deflater.DEFAULT_COMPRESSION})
+	public int level;
+
+	BufferPool pool;
+	FrameCompressor compressor;
+	ByteBuffer frame;
+	ByteBuffer compressed;
+
+	@Setup
+	public void setUp() throws IOException {
+		PeerManager manager = new PeerManager();
+		pool = manager.getBufferPool();
+		compressor = new FrameCompressor(pool, manager.metrics);
+		frame = new PartyMessage.Details(0, 42, PartyMessageCodecBenchmark.members(members)).encodeFrame(pool);
+
+		ByteBuffer buf = compressor.compress(frame, level);
+		if(buf == null) {
+			throw new IllegalStateException("Frame does not compress");
+		}
+		compressed = ByteBuffer.allocate(buf.remaining());
+		compressed.put(buf).flip();
+		pool.release(buf);
+		System.out.println("Compresses " + frame.remaining() + " bytes to " + compressed.remaining());
+	}
+
+	@Benchmark
+	public int compress() {
+		ByteBuffer buf = compressor.compress(frame, level);
+		int length = buf.remaining();
+		pool.release(buf);
+		return length;
+	}
+
+	@Benchmark
+	public int decompress() throws Message.CodecException {
+		ByteBuffer data = compressed.duplicate();
+		data.position(FrameDecoder.HEADER_LENGTH);
+		ByteBuffer buf = compressor.decompress(data, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+		int length = buf.remaining();
+		pool.release(buf);
+		return length;
+	}
+}
@@ -0,0 +1,105 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message.decode for the small top-level messages, where finding the codec
+ * is most of the work, and for a tag with no codec, which is rejected; that
+ * cost is mostly building the CodecException.
+ * Filling every free tag with a codec should make no difference, as codecs
+ * are looked up by index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class DecodeDispatchBenchmark {
+	final static byte UNKNOWN_TAG = (byte)0xff;
+
+	@Param({"HEARTBEAT", "HELLO", "BEACON", "ACK", "UNKNOWN"})
+	public String message;
+
+	@Param({"false", "true"})
+	public boolean fillRegistry;
+
+	PeerManager manager;
+	ByteBuffer body;
+	Message.Codec[] registered;
+
+	@Setup
+	public void setUp() throws IOException {
+		manager = new PeerManager();
+		registered = Message.Codecs.byTag.clone();
+		if(fillRegistry) {
+			Message.Codec codec = new Message.EmptyCodec(Message.Type.APPLICATION_CONTROL_MESSAGE);
+			for(int i = 0; i < 256; i++) {
+				if(Message.Codecs.byTag[i] == null && (byte)i != UNKNOWN_TAG) {
+					Message.Codecs.byTag[i] = codec;
+				}
+			}
+		}
+		body = encode(create());
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.arraycopy(registered, 0, Message.Codecs.byTag, 0, registered.length);
+	}
+
+	Message create() {
+		if(message.equals("HEARTBEAT")) {
+			return new Message(Message.Type.HEARTBEAT);
+		} else if(message.equals("HELLO")) {
+			return new HelloMessage(Message.MAX_VERSION, HelloMessage.INFLATE, 42);
+		} else if(message.equals("BEACON")) {
+			return new BeaconMessage(42, 7000);
+		} else if(message.equals("ACK")) {
+			return new PartyMessage.Ack(42, 7);
+		} else if(message.equals("UNKNOWN")) {
+			return new Message(Message.Type.HEARTBEAT) {
+				@Override
+				void encode(ByteBuffer buf) {
+					buf.put(Message.VERSION);
+					buf.put(UNKNOWN_TAG);
+				}
+			};
+		}
+		throw new IllegalArgumentException("No benchmark message for " + message);
+	}
+
+	static ByteBuffer encode(Message msg) {
+		ByteBuffer buf = ByteBuffer.allocate(msg.getEncodedLength());
+		msg.encode(buf);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * @return The message, or null if it was rejected.
+	 */
+	@Benchmark
+	public Message decode() {
+		try {
+			return Message.decode(body.duplicate(), manager);
+		} catch (Message.CodecException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips over loopback with session events handled inline on the
+ * reactor thread, or dispatched through each transport's serial executor
+ * to VirtualThreads.newExecutor() (a thread pool on JVMs without virtual
+ * threads). With slowMillis set, one more connection keeps its server
+ * handler busy for that long on every frame, to show how far it holds up
+ * the others. There is a single reactor, so inline handling shares it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class DispatchBenchmark {
+	final static int SIZE = 64;
+	final static byte FAST = 0, SLOW = 1;
+
+	@Param({"inline", "executor"})
+	public String dispatch;
+
+	@Param({"1", "100"})
+	public int connections;
+
+	@Param({"0", "1"})
+	public int slowMillis;
+
+	Manager manager;
+	BufferPool pool;
+	int port;
+	Client[] clients;
+	int next = 0;
+	Thread slowSender;
+	volatile boolean running = true;
+
+	@Setup
+	public void setUp() throws Exception {
+		manager = new Manager(1) {};
+		if(dispatch.equals("executor")) {
+			manager.setDispatchExecutor(VirtualThreads.newExecutor());
+		}
+		pool = manager.getBufferPool();
+		port = LoopbackBenchmark.freePort();
+		manager.listen("127.0.0.1", port, new Echo());
+
+		clients = new Client[connections];
+		for(int i = 0; i < connections; i++) {
+			clients[i] = connect();
+		}
+		if(slowMillis > 0) {
+			final Client slow = connect();
+			slowSender = new Thread("Slow sender") {
+				@Override
+				public void run() {
+					try {
+						while(running) {
+							send(slow, SLOW);
+							slow.replies.tryAcquire(1, TimeUnit.SECONDS);
+						}
+					} catch (Exception e) {
+						if(running) e.printStackTrace();
+					}
+				}
+			};
+			slowSender.start();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		running = false;
+		if(slowSender != null) {
+			slowSender.join();
+		}
+		// The executor is left running for the closes still being dispatched
+		for(Client client : clients) {
+			client.transport.close();
+		}
+	}
+
+	Client connect() throws IOException, InterruptedException {
+		final Client client = new Client();
+		final CountDownLatch connected = new CountDownLatch(1);
+		manager.connect(new InetSocketAddress("127.0.0.1", port), new Manager.Dispatcher() {
+			public TransportSession accept(Transport channel) {
+				throw new UnsupportedOperationException();
+			}
+
+			public TransportSession onConnect(Transport channel) {
+				client.transport = channel;
+				connected.countDown();
+				return client;
+			}
+
+			public void onConnectFailed(Transport channel, IOException cause) {
+				throw new IllegalStateException("Connect failed", cause);
+			}
+		});
+		if(!connected.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Timed out connecting");
+		}
+		return client;
+	}
+
+	void send(Client client, byte kind) throws IOException {
+		ByteBuffer frame = pool.acquire(FrameDecoder.HEADER_LENGTH + SIZE);
+		frame.putInt(SIZE);
+		frame.put(kind);
+		frame.position(frame.position() + SIZE - 1).flip();
+		client.transport.send(frame);
+	}
+
+	@Benchmark
+	public void roundTrip() throws Exception {
+		Client client = clients[next];
+		next = (next + 1) % clients.length;
+		send(client, FAST);
+		client.replies.acquire();
+	}
+
+	/**
+	 * Sends every frame back where it came from, first sleeping on those
+	 * marked slow.
+	 */
+	class Echo implements Manager.Dispatcher {
+		public TransportSession accept(final Transport channel) {
+			return new TransportSession() {
+				public void onReceive(ByteBuffer data) {
+					if(data.remaining() != SIZE) return; // Heartbeat
+					if(data.get(data.position()) == SLOW) {
+						try {
+							Thread.sleep(slowMillis);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					ByteBuffer frame = pool.acquire(FrameDecoder.HEADER_LENGTH + SIZE);
+					frame.putInt(SIZE);
+					frame.put(data).flip();
+					try {
+						channel.send(frame);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+
+				public void onClose() {
+				}
+			};
+		}
+
+		public TransportSession onConnect(Transport channel) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void onConnectFailed(Transport channel, IOException cause) {
+		}
+	}
+
+	static class Client implements TransportSession {
+		final Semaphore replies = new Semaphore(0);
+		volatile Transport transport;
+
+		public void onReceive(ByteBuffer data) {
+			if(data.remaining() == SIZE) { // Not a heartbeat
+				replies.release();
+			}
+		}
+
+		public void onClose() {
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a party message into a pooled frame, as PeerSession.send does,
+ * once the pool is warm and, with the dictionary on, every name has been
+ * sent. That path should allocate nothing: run main() to check, which
+ * fails if the GC profiler sees any allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class EncodeAllocationBenchmark {
+	/** Bytes per operation below which encoding counts as allocation free */
+	final static double ALLOCATION_TOLERANCE = 1.0;
+
+	@Param({"DETAILS", "DELTA", "ACK", "PING"})
+	public String type;
+
+	@Param({"10", "1000"})
+	public int members;
+
+	@Param({"1", "2"})
+	public int version;
+
+	@Param({"true", "false"})
+	public boolean dictionary;
+
+	BufferPool pool;
+	WireContext context;
+	Message message;
+
+	@Setup
+	public void setUp() throws IOException {
+		PeerManager manager = new PeerManager();
+		pool = manager.getBufferPool();
+		context = new WireContext(manager.names, dictionary);
+		context.negotiate(version);
+		message = PartyMessageCodecBenchmark.create(PartyMessage.Type.valueOf(type),
+				PartyMessageCodecBenchmark.members(members));
+		pool.release(message.encodeFrame(pool, context)); // Fills the dictionary
+	}
+
+	@Benchmark
+	public int encode() {
+		ByteBuffer buf = message.encodeFrame(pool, context);
+		int length = buf.remaining();
+		pool.release(buf);
+		return length;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Collection<RunResult> results = new Runner(new OptionsBuilder()
+				.include(EncodeAllocationBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("encode-allocation.json")
+				.build()).run();
+
+		int failed = 0;
+		for(RunResult result : results) {
+			Result alloc = result.getSecondaryResults().get("gc.alloc.rate.norm");
+			if(alloc != null && alloc.getScore() > ALLOCATION_TOLERANCE) {
+				System.err.println(result.getParams().id() + " allocates " + alloc.getScore() + " B/op");
+				failed++;
+			}
+		}
+		if(failed > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a gossip party of many nodes in one process, each joining
+ * through the first at once, and runs protocol periods until every node
+ * knows every other. Nodes share a manager and talk over in-memory links,
+ * made on first use, so every member is reachable as on a LAN. A period is
+ * each node's tick followed by delivery of everything sent, acks included;
+ * nothing fails, so no one is suspected.
+ *
+ * Reports the periods taken to converge, and the bytes each node sent per
+ * period on average, as counters alongside the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class GossipBenchmark {
+	final static long PARTY_ID = 42;
+	final static int MAX_PERIODS = 1000;
+
+	@Param({"10", "100", "1000"})
+	public int nodes;
+
+	PeerManager manager;
+	MemoryNetwork network;
+	List<Member> party;
+
+	@Setup(Level.Trial)
+	public void setUpManager() throws IOException {
+		manager = new PeerManager();
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		network = new MemoryNetwork(manager);
+		party = new ArrayList<Member>(nodes);
+		for(int i = 0; i < nodes; i++) {
+			party.add(new Member(i + 1));
+		}
+		party.get(0).start(null);
+		for(int i = 1; i < nodes; i++) {
+			Member node = party.get(i);
+			node.start(node.getPeer(party.get(0).nodeID));
+		}
+	}
+
+	/**
+	 * JMH sums counters over the measured iterations, so each adds its
+	 * share of the mean.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Convergence {
+		public double periods;
+		public double bytesPerNodePerPeriod;
+		double share;
+
+		@Setup(Level.Trial)
+		public void setUpShare(BenchmarkParams params) {
+			share = 1.0 / params.getMeasurement().getCount();
+		}
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			periods = 0;
+			bytesPerNodePerPeriod = 0;
+		}
+	}
+
+	@Benchmark
+	public int converge(Convergence convergence) {
+		network.run();
+		int periods = 0;
+		while(!converged()) {
+			if(++periods > MAX_PERIODS) {
+				throw new IllegalStateException("No convergence after " + MAX_PERIODS + " periods");
+			}
+			for(int i = 0; i < nodes; i++) {
+				party.get(i).tick();
+			}
+			network.run();
+		}
+
+		long bytes = 0;
+		for(int i = 0; i < nodes; i++) {
+			bytes += party.get(i).bytesSent();
+		}
+		convergence.periods = periods * convergence.share;
+		convergence.bytesPerNodePerPeriod = (double) bytes / nodes / Math.max(periods, 1) * convergence.share;
+		return periods;
+	}
+
+	boolean converged() {
+		for(int i = 0; i < nodes; i++) {
+			if(party.get(i).members.size() != nodes) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A member of the simulated party. Its timeouts go on the network's
+	 * timer, which never expires them, so periods are driven by the
+	 * benchmark; probes arrive through its own sessions rather than the
+	 * manager's parties.
+	 */
+	class Member extends GossipParty {
+		final Map<Long, PeerSession> peers = new HashMap<Long, PeerSession>();
+
+		Member(long nodeID) {
+			super(GossipBenchmark.this.manager, PARTY_ID, new PartyMember("node-" + nodeID), nodeID);
+		}
+
+		@Override
+		TimingWheel.Timeout schedule(Manager.Task task, long delay) {
+			return network.timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Links to the node on first use.
+		 */
+		@Override
+		PeerSession getPeer(long nodeID) {
+			PeerSession session = peers.get(nodeID);
+			if(session == null) {
+				Member other = party.get((int)nodeID - 1);
+				MemoryNetwork.Link link = network.link();
+				session = new MemberSession(this, link.a, nodeID);
+				PeerSession back = new MemberSession(other, link.b, this.nodeID);
+				link.attach(session, back);
+				peers.put(nodeID, session);
+				other.peers.put(this.nodeID, back);
+			}
+			return session;
+		}
+
+		long bytesSent() {
+			long bytes = 0;
+			for(PeerSession session : peers.values()) {
+				bytes += ((MemoryNetwork.End) session.transport).bytesSent;
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * A node's session to another, handing probes straight to the node.
+	 */
+	class MemberSession extends PeerSession {
+		final Member node;
+
+		MemberSession(Member node, Transport transport, long remoteNodeID) {
+			super(GossipBenchmark.this.manager, transport);
+			this.node = node;
+			nodeID = remoteNodeID;
+			setState(new NullState() {
+				@Override
+				public void handle(PartyMessage.Probe msg) {
+					onProbe(msg);
+				}
+			});
+		}
+
+		@Override
+		protected void onProbe(PartyMessage.Probe msg) {
+			node.onProbe(this, msg);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through Manager and SocketTransport over loopback. Each call
+ * sends a frame on the next of the connections and waits for the server to
+ * echo it, so Throughput gives round trips per second and SampleTime their
+ * latency. The file descriptor limit must be at least twice the number of
+ * connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class LoopbackBenchmark {
+	@Param({"1", "100", "1000", "10000"})
+	public int connections;
+
+	@Param({"64", "4096"})
+	public int size;
+
+	@Param({"1", "4"})
+	public int workers;
+
+	Manager manager;
+	BufferPool pool;
+	Client[] clients;
+	int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		manager = new Manager(workers) {};
+		pool = manager.getBufferPool();
+		int port = freePort();
+		manager.listen("127.0.0.1", port, new Echo());
+
+		clients = new Client[connections];
+		final CountDownLatch connected = new CountDownLatch(connections);
+		for(int i = 0; i < connections; i++) {
+			final Client client = new Client();
+			clients[i] = client;
+			manager.connect(new InetSocketAddress("127.0.0.1", port), new Manager.Dispatcher() {
+				public TransportSession accept(Transport channel) {
+					throw new UnsupportedOperationException();
+				}
+
+				public TransportSession onConnect(Transport channel) {
+					client.transport = channel;
+					connected.countDown();
+					return client;
+				}
+
+				public void onConnectFailed(Transport channel, IOException cause) {
+					throw new IllegalStateException("Connect failed", cause);
+				}
+			});
+		}
+		if(!connected.await(60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Timed out connecting");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for(Client client : clients) {
+			client.transport.close();
+		}
+	}
+
+	static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	public void roundTrip() throws Exception {
+		Client client = clients[next];
+		next = (next + 1) % clients.length;
+
+		ByteBuffer frame = pool.acquire(FrameDecoder.HEADER_LENGTH + size);
+		frame.putInt(size);
+		for(int i = 0; i < size; i++) {
+			frame.put((byte)1);
+		}
+		frame.flip();
+		client.transport.send(frame);
+		client.replies.acquire();
+	}
+
+	/**
+	 * Sends every frame back where it came from.
+	 */
+	class Echo implements Manager.Dispatcher {
+		public TransportSession accept(final Transport channel) {
+			return new TransportSession() {
+				public void onReceive(ByteBuffer data) {
+					ByteBuffer frame = pool.acquire(FrameDecoder.HEADER_LENGTH + data.remaining());
+					frame.putInt(data.remaining());
+					frame.put(data).flip();
+					try {
+						channel.send(frame);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+
+				public void onClose() {
+				}
+			};
+		}
+
+		public TransportSession onConnect(Transport channel) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void onConnectFailed(Transport channel, IOException cause) {
+		}
+	}
+
+	class Client implements TransportSession {
+		final Semaphore replies = new Semaphore(0);
+		volatile Transport transport;
+
+		public void onReceive(ByteBuffer data) {
+			if(data.remaining() == size) { // Not a heartbeat
+				replies.release();
+			}
+		}
+
+		public void onClose() {
+		}
+	}
+}
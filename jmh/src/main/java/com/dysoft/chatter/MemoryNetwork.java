@@ -0,0 +1,171 @@
+package com.dysoft.chatter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions joined by in-memory links, for benchmarks that run many nodes in
+ * one process. Frames are queued as they are sent and delivered by run(),
+ * in order, so a run proceeds in rounds of messages as the nodes would see
+ * them over a network, without sockets or threads.
+ *
+ * Timeouts are armed on a wheel that is never expired, so a run must finish
+ * well within them.
+ */
+class MemoryNetwork {
+	final PeerManager manager;
+	final BufferPool pool;
+	final TimingWheel timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 512);
+	final ArrayDeque<Delivery> queue = new ArrayDeque<Delivery>();
+	long delivered = 0;
+	int ends = 0;
+
+	MemoryNetwork(PeerManager manager) {
+		this.manager = manager;
+		pool = manager.getBufferPool();
+	}
+
+	/**
+	 * @return A new link, whose ends are not yet attached to sessions.
+	 */
+	Link link() {
+		return new Link(pool, pool);
+	}
+
+	/**
+	 * Joins two new sessions to each other.
+	 */
+	PeerSession[] connect() {
+		return connect(manager, manager);
+	}
+
+	/**
+	 * Joins new sessions of the given managers to each other.
+	 */
+	PeerSession[] connect(PeerManager atA, PeerManager atB) {
+		Link link = new Link(atA.getBufferPool(), atB.getBufferPool());
+		PeerSession a = new PeerSession(atA, link.a);
+		PeerSession b = new PeerSession(atB, link.b);
+		link.attach(a, b);
+		return new PeerSession[] { a, b };
+	}
+
+	/**
+	 * Delivers queued frames, and any sent in reply, until none are left.
+	 * @return Frames delivered.
+	 */
+	int run() {
+		int n = 0;
+		Delivery d;
+		while((d = queue.poll()) != null) {
+			d.to.onReceive(d.frame);
+			n++;
+		}
+		delivered += n;
+		return n;
+	}
+
+	static class Delivery {
+		final TransportSession to;
+		final ByteBuffer frame;
+
+		Delivery(TransportSession to, ByteBuffer frame) {
+			this.to = to;
+			this.frame = frame;
+		}
+	}
+
+	class Link {
+		final End a, b;
+
+		/**
+		 * Buffers sent on each end are released to the pool given for it.
+		 */
+		Link(BufferPool poolA, BufferPool poolB) {
+			a = new End(poolA);
+			b = new End(poolB);
+		}
+
+		/**
+		 * Joins the sessions using each end, so that what one sends the
+		 * other receives.
+		 */
+		void attach(TransportSession atA, TransportSession atB) {
+			a.to = atB;
+			b.to = atA;
+		}
+	}
+
+	/**
+	 * One end of a link. Frames sent on it go to the session at the other end.
+	 */
+	class End implements Transport {
+		final SocketAddress address = InetSocketAddress.createUnresolved("memory", ends++ & 0xffff);
+		final BufferPool pool;
+		TransportSession to;
+		long bytesSent = 0;
+		boolean closed = false;
+
+		End(BufferPool pool) {
+			this.pool = pool;
+		}
+
+		void queue(ByteBuffer view) {
+			ByteBuffer frame = ByteBuffer.allocate(view.remaining() - FrameDecoder.HEADER_LENGTH);
+			view.position(view.position() + FrameDecoder.HEADER_LENGTH);
+			frame.put(view).flip();
+			bytesSent += FrameDecoder.HEADER_LENGTH + frame.remaining();
+			if(!closed) {
+				queue.add(new Delivery(to, frame));
+			}
+		}
+
+		public void send(ByteBuffer data) throws IOException {
+			send(data, true);
+		}
+
+		public void send(ByteBuffer data, boolean flush) throws IOException {
+			queue(data.duplicate());
+			pool.release(data);
+		}
+
+		public void send(SharedBuffer data) throws IOException {
+			queue(data.view());
+		}
+
+		public void close() throws IOException {
+			closed = true;
+		}
+
+		public SocketAddress getSocketAddress() {
+			return address;
+		}
+
+		public boolean isWritable() {
+			return true;
+		}
+
+		public int getQueuedBytes() {
+			return 0;
+		}
+
+		public Manager.OverflowPolicy getOverflowPolicy() {
+			return Manager.OverflowPolicy.CLOSE;
+		}
+
+		public void setWritabilityListener(WritabilityListener listener) {
+		}
+
+		public TimingWheel getTimer() {
+			return timer;
+		}
+
+		public void execute(Runnable task) {
+			task.run();
+		}
+	}
+}
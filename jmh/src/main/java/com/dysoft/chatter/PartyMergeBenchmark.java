@@ -0,0 +1,174 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The merge handshake end to end, over in-memory links so that only the
+ * processing is timed.
+ *
+ * merge() has joiners request to merge into one fixed leader: each
+ * joiner's MergeRequest, the leader's accept, the agreement and the
+ * confirmed round. The leader's sessions wait in ClientBeginState, as they
+ * do after dialing. Every joiner starts at once, so with more than one this
+ * is the time for nodes that boot together to join a party already formed.
+ *
+ * simultaneous() starts every node as the leader of its own party, linked
+ * to every other as discovery would link them: the lower node dials, and
+ * offers its parties to the higher, which asks to merge into one of them.
+ * Nothing decides the outcome up front, so rather than fail when the nodes
+ * do not end in one party it reports the largest party formed, and how
+ * many nodes know every other.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class PartyMergeBenchmark {
+	static long nextID = 1;
+
+	@State(Scope.Thread)
+	public static class FixedLeader {
+		@Param({"1", "10", "100", "1000"})
+		public int joiners;
+
+		PeerManager manager;
+		MemoryNetwork network;
+		Party leader;
+
+		@Setup(Level.Trial)
+		public void setUpManager() throws IOException {
+			manager = new PeerManager();
+		}
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			network = new MemoryNetwork(manager);
+			leader = new Party(nextID++, new PartyMember("leader"));
+			manager.setParty(leader);
+
+			for(int i = 0; i < joiners; i++) {
+				PeerSession[] link = network.connect();
+				PeerSession atLeader = link[0], atJoiner = link[1];
+				atLeader.setState(atLeader.new ClientBeginState(atLeader.getState()));
+				atJoiner.requestMerge(new Party(nextID++, new PartyMember("node-" + i)), leader.getID());
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			manager.removeParty(leader.getID());
+		}
+	}
+
+	/**
+	 * Nodes with a manager each, as the parties they lead are looked up by
+	 * ID through it.
+	 */
+	@State(Scope.Thread)
+	public static class Mesh {
+		@Param({"10", "100"})
+		public int nodes;
+
+		PeerManager[] managers;
+		Party[] parties;
+		MemoryNetwork network;
+
+		@Setup(Level.Trial)
+		public void setUpManagers() throws IOException {
+			managers = new PeerManager[nodes];
+			for(int i = 0; i < nodes; i++) {
+				managers[i] = new PeerManager();
+			}
+			parties = new Party[nodes];
+		}
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			network = new MemoryNetwork(managers[0]);
+			for(int i = 0; i < nodes; i++) {
+				parties[i] = new Party(nextID++, new PartyMember("node-" + i));
+				managers[i].setParty(parties[i]);
+			}
+			for(int i = 0; i < nodes; i++) {
+				for(int j = i + 1; j < nodes; j++) {
+					PeerSession[] link = network.connect(managers[i], managers[j]);
+					PeerSession dialer = link[0], acceptor = link[1];
+					acceptor.setState(acceptor.new ServerBeginState(acceptor.getState()));
+					dialer.setState(dialer.new ClientBeginState(dialer.getState()));
+				}
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			for(int i = 0; i < nodes; i++) {
+				managers[i].removeParty(parties[i].getID());
+			}
+		}
+	}
+
+	/**
+	 * How the nodes of a mesh ended up. JMH sums counters over the measured
+	 * iterations, so each adds its share of the mean.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Outcome {
+		public double largestParty;	//< Members of the largest party any node is in
+		public double nodesConverged;	//< Nodes whose party has every node
+		double share;
+
+		@Setup(Level.Trial)
+		public void setUpShare(BenchmarkParams params) {
+			share = 1.0 / params.getMeasurement().getCount();
+		}
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			largestParty = 0;
+			nodesConverged = 0;
+		}
+	}
+
+	@Benchmark
+	public int merge(FixedLeader s) {
+		int frames = s.network.run();
+		if(s.leader.members.size() != s.joiners + 1) {
+			throw new IllegalStateException("Merged " + (s.leader.members.size() - 1) + " of " + s.joiners);
+		}
+		return frames;
+	}
+
+	@Benchmark
+	public int simultaneous(Mesh s, Outcome outcome) {
+		int frames = s.network.run();
+
+		int largest = 0, converged = 0;
+		for(int i = 0; i < s.nodes; i++) {
+			int size = s.parties[i].members.size();
+			largest = Math.max(largest, size);
+			if(size == s.nodes) converged++;
+		}
+		outcome.largestParty = largest * outcome.share;
+		outcome.nodesConverged = converged * outcome.share;
+		return frames;
+	}
+}
@@ -0,0 +1,111 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes each kind of party message, by member count and wire
+ * format version. Frames are encoded into pooled buffers as sessions do.
+ * The name dictionary is off, so every encode does the same work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class PartyMessageCodecBenchmark {
+	@Param({"DETAILS", "MERGE_REQUEST", "MERGE_CONFIRM", "DELTA", "ACK", "PING"})
+	public String type;
+
+	@Param({"1", "10", "100", "1000"})
+	public int members;
+
+	@Param({"1", "2"})
+	public int version;
+
+	PeerManager manager;
+	BufferPool pool;
+	WireContext context;
+	Message message;
+	ByteBuffer frame;
+
+	@Setup
+	public void setUp() throws IOException {
+		manager = new PeerManager();
+		pool = manager.getBufferPool();
+		context = new WireContext(manager.names, false);
+		context.negotiate(version);
+		message = create(PartyMessage.Type.valueOf(type), members(members));
+
+		ByteBuffer encoded = message.encodeFrame(pool, context);
+		frame = ByteBuffer.allocate(encoded.remaining());
+		frame.put(encoded).flip();
+		pool.release(encoded);
+	}
+
+	static List<PartyMember> members(int n) {
+		List<PartyMember> list = new ArrayList<PartyMember>(n);
+		for(int i = 0; i < n; i++) {
+			list.add(new PartyMember("member-" + i));
+		}
+		return list;
+	}
+
+	static PartyMessage create(PartyMessage.Type type, List<PartyMember> members) {
+		switch(type) {
+			case DETAILS:
+				return new PartyMessage.Details(0, 42, members);
+			case MERGE_REQUEST:
+				return new PartyMessage.MergeRequest(0, 42, 43, members);
+			case MERGE_CONFIRM:
+				return new PartyMessage.MergeConfirm(0, 42, members);
+			case DELTA:
+				List<PartyMessage.Change> changes = new ArrayList<PartyMessage.Change>(members.size());
+				for(PartyMember m : members) {
+					changes.add(new PartyMessage.Change(true, m));
+				}
+				return new PartyMessage.Delta(0, 42, 7, 7 + changes.size(), changes);
+			case ACK:
+				return new PartyMessage.Ack(42, 7);
+			case PING:
+				List<PartyMessage.Update> updates = new ArrayList<PartyMessage.Update>(members.size());
+				for(int i = 0; i < members.size(); i++) {
+					updates.add(new PartyMessage.Update(PartyMessage.Update.ALIVE, 0, i + 1, members.get(i)));
+				}
+				return new PartyMessage.Probe(PartyMessage.Type.PING, 0, 42, 1, 100, 0, updates);
+			default:
+				throw new IllegalArgumentException("No benchmark message for " + type);
+		}
+	}
+
+	@Benchmark
+	public int encode() {
+		ByteBuffer buf = message.encodeFrame(pool, context);
+		int length = buf.remaining();
+		pool.release(buf);
+		return length;
+	}
+
+	@Benchmark
+	public Message decode() throws Message.CodecException {
+		ByteBuffer buf = frame.duplicate();
+		buf.position(FrameDecoder.HEADER_LENGTH);
+		return Message.decode(buf, manager, context);
+	}
+}
@@ -0,0 +1,125 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of one send on a SocketTransport, from one thread and from
+ * several at once on the same connection, to a server that discards what
+ * it reads. With flush off and a linger window set, sends go through the
+ * reactor's task queue and wakeups rather than writing directly. The send
+ * queue is capped with DROP_NEWEST so that sending faster than the socket
+ * drains measures the send path and not the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // Reactor threads run until exit
+public class SendBenchmark {
+	@Param({"64", "1024"})
+	public int size;
+
+	@Param({"true", "false"})
+	public boolean flush;
+
+	Manager manager;
+	BufferPool pool;
+	volatile Transport transport;
+
+	@Setup
+	public void setUp() throws Exception {
+		manager = new Manager(1) {};
+		manager.setSendQueueLimit(1 << 20, Manager.OverflowPolicy.DROP_NEWEST);
+		pool = manager.getBufferPool();
+		int port = LoopbackBenchmark.freePort();
+		manager.listen("127.0.0.1", port, new Sink());
+
+		final CountDownLatch connected = new CountDownLatch(1);
+		manager.connect(new InetSocketAddress("127.0.0.1", port), new Manager.Dispatcher() {
+			public TransportSession accept(Transport channel) {
+				throw new UnsupportedOperationException();
+			}
+
+			public TransportSession onConnect(Transport channel) {
+				transport = channel;
+				connected.countDown();
+				return new Sink().accept(channel);
+			}
+
+			public void onConnectFailed(Transport channel, IOException cause) {
+				throw new IllegalStateException("Connect failed", cause);
+			}
+		});
+		if(!connected.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Timed out connecting");
+		}
+		if(!flush) {
+			((Manager.SocketTransport<?>) transport).setLinger(64 * 1024, 1);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transport.close();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void send() throws IOException {
+		sendFrame();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void sendContended() throws IOException {
+		sendFrame();
+	}
+
+	void sendFrame() throws IOException {
+		ByteBuffer frame = pool.acquire(FrameDecoder.HEADER_LENGTH + size);
+		frame.putInt(size);
+		frame.position(frame.position() + size).flip();
+		transport.send(frame, flush);
+	}
+
+	/**
+	 * Discards everything it receives.
+	 */
+	static class Sink implements Manager.Dispatcher {
+		public TransportSession accept(Transport channel) {
+			return new TransportSession() {
+				public void onReceive(ByteBuffer data) {
+				}
+
+				public void onClose() {
+				}
+			};
+		}
+
+		public TransportSession onConnect(Transport channel) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void onConnectFailed(Transport channel, IOException cause) {
+		}
+	}
+}
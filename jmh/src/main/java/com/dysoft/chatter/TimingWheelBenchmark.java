@@ -0,0 +1,128 @@
+package com.dysoft.chatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arming and cancelling a timeout with many others pending, as every
+ * session and party wait state does, on the timing wheel and, for
+ * comparison, on a ScheduledThreadPoolExecutor with one timer per
+ * timeout. Also times one expire() call that runs every pending timeout
+ * at once.
+ */
+@Fork(1)
+public class TimingWheelBenchmark {
+	final static Manager.Task NOTHING = new Manager.Task() {
+		public void run() {
+		}
+	};
+
+	/**
+	 * Timeouts spread over the next few seconds, as handshake and merge
+	 * timeouts would be.
+	 */
+	@State(Scope.Thread)
+	public static class Pending {
+		@Param({"100000"})
+		public int pending;
+
+		TimingWheel wheel;
+		ScheduledThreadPoolExecutor executor;
+
+		@Setup
+		public void setUp() {
+			wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 512);
+			wheel.expire(); // Makes this thread the owner
+			executor = new ScheduledThreadPoolExecutor(1);
+			executor.setRemoveOnCancelPolicy(true);
+
+			Random random = new Random(1);
+			for(int i = 0; i < pending; i++) {
+				long delay = 60000 + random.nextInt(5000);
+				wheel.schedule(NOTHING, delay, TimeUnit.MILLISECONDS);
+				executor.schedule(new Runnable() {
+					public void run() {
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Timeouts that are all due by the time the benchmark runs.
+	 */
+	@State(Scope.Thread)
+	public static class Due {
+		@Param({"100000"})
+		public int pending;
+
+		TimingWheel wheel;
+
+		@Setup(Level.Iteration)
+		public void setUp() throws InterruptedException {
+			wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 512);
+			wheel.expire();
+			Random random = new Random(1);
+			for(int i = 0; i < pending; i++) {
+				wheel.schedule(NOTHING, random.nextInt(100), TimeUnit.MILLISECONDS);
+			}
+			Thread.sleep(110);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public boolean scheduleCancel(Pending state) {
+		return state.wheel.schedule(NOTHING, 3000, TimeUnit.MILLISECONDS).cancel();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public boolean executorScheduleCancel(Pending state) {
+		ScheduledFuture<?> future = state.executor.schedule(new Runnable() {
+			public void run() {
+			}
+		}, 3000, TimeUnit.MILLISECONDS);
+		return future.cancel(false);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 20)
+	public int expire(Due state) {
+		int run = state.wheel.expire();
+		if(run != state.pending) {
+			throw new IllegalStateException("Expired " + run + " of " + state.pending);
+		}
+		return run;
+	}
+}
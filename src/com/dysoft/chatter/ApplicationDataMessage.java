@@ -0,0 +1,51 @@
+package com.dysoft.chatter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unreliable application data for a party, sent as a single datagram.
+ * The payload of a decoded message is a slice of the receive buffer, and is
+ * only valid while the message is being handled.
+ */
+public class ApplicationDataMessage extends Message {
+	final long partyID;
+	final ByteBuffer payload;
+
+	public ApplicationDataMessage(long partyID, ByteBuffer payload) {
+		super(Type.APPLICATION_DATA_MESSAGE);
+		this.partyID = partyID;
+		this.payload = payload;
+	}
+
+	ApplicationDataMessage(ByteBuffer buf) {
+		super(Type.APPLICATION_DATA_MESSAGE);
+		partyID = buf.getLong();
+		payload = buf.slice();
+	}
+
+	@Override
+	public int getEncodedLength() {
+		return super.getEncodedLength() + 8 + payload.remaining();
+	}
+
+	@Override
+	void encode(ByteBuffer buf) {
+		super.encode(buf);
+		buf.putLong(partyID);
+		buf.put(payload.duplicate());
+	}
+
+	public long getPartyID() {
+		return partyID;
+	}
+
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	final static Codec CODEC = new Codec() {
+		public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+			return new ApplicationDataMessage(buf);
+		}
+	};
+}
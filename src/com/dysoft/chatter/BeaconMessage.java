@@ -0,0 +1,50 @@
+package com.dysoft.chatter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Discovery announcement, identifying the sending node and the TCP port it
+ * accepts peer connections on.
+ */
+public class BeaconMessage extends Message {
+	final long nodeID;
+	final int tcpPort;
+
+	public BeaconMessage(long nodeID, int tcpPort) {
+		super(Type.PARTY_BROADCAST);
+		this.nodeID = nodeID;
+		this.tcpPort = tcpPort;
+	}
+
+	BeaconMessage(ByteBuffer buf) {
+		super(Type.PARTY_BROADCAST);
+		nodeID = buf.getLong();
+		tcpPort = buf.getShort() & 0xffff;
+	}
+
+	@Override
+	public int getEncodedLength() {
+		return super.getEncodedLength() + 10;
+	}
+
+	@Override
+	void encode(ByteBuffer buf) {
+		super.encode(buf);
+		buf.putLong(nodeID);
+		buf.putShort((short)tcpPort);
+	}
+
+	public long getNodeID() {
+		return nodeID;
+	}
+
+	public int getTcpPort() {
+		return tcpPort;
+	}
+
+	final static Codec CODEC = new Codec() {
+		public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+			return new BeaconMessage(buf);
+		}
+	};
+}
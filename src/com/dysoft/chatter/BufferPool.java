@@ -0,0 +1,338 @@
+package com.dysoft.chatter;
+
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of direct buffers in power-of-two size classes. Each platform thread
+ * keeps a small cache per size class which is used without locking; buffers that
+ * overflow it go to a shared arena bounded by total size, and anything
+ * beyond that is left to the garbage collector.
+ *
+ * Requests larger than the biggest size class are allocated unpooled.
+ * Every buffer the pool allocates gets a slot, found by identity without
+ * locking, whose state says whether it is handed out; acquire and release
+ * flip it with a CAS. Anything else released (heap buffers, views, direct
+ * buffers the caller allocated itself, or a buffer released twice) is
+ * ignored, so it is always safe to release a buffer handed to a transport.
+ * Only allocating and dropping buffers, which cost far more anyway, lock
+ * the slot table.
+ */
+public class BufferPool {
+	protected final static Logger LOG = Logger.getLogger(BufferPool.class);
+
+	public final static int MIN_SIZE_SHIFT = 8;		//< 256 bytes
+	public final static int MAX_SIZE_SHIFT = 16;	//< 64 KiB
+	final static int NUM_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+
+	final int threadCacheSize;
+	final long arenaCapacity;
+
+	final Queue<Slot>[] arena;
+	final Slots slots = new Slots();	//< Every buffer allocated and not yet dropped
+	final AtomicLong arenaBytes = new AtomicLong();
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong outstandingBytes = new AtomicLong();
+
+	volatile Map<ByteBuffer, Throwable> leaks = null;
+
+	final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			// Virtual threads are too short lived for a cache to pay off, and
+			// would strand the buffers in it when they end
+			return VirtualThreads.isVirtual(Thread.currentThread()) ? null : new ThreadCache();
+		}
+	};
+
+	public BufferPool() {
+		this(32, 64L * 1024 * 1024);
+	}
+
+	/**
+	 * @param threadCacheSize  Buffers of each size class cached per thread
+	 * @param arenaCapacity    Total bytes held in the shared arena
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int threadCacheSize, long arenaCapacity) {
+		this.threadCacheSize = threadCacheSize;
+		this.arenaCapacity = arenaCapacity;
+		arena = new Queue[NUM_CLASSES];
+		for(int i = 0; i < NUM_CLASSES; i++) {
+			arena[i] = new ConcurrentLinkedQueue<Slot>();
+		}
+	}
+
+	/**
+	 * Returns a cleared direct buffer with at least the given capacity.
+	 */
+	public ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+		Slot slot = null;
+
+		if(sizeClass < NUM_CLASSES) {
+			ThreadCache cache = caches.get();
+			if(cache != null) {
+				slot = cache.pop(sizeClass);
+			}
+			if(slot == null) {
+				slot = arena[sizeClass].poll();
+				if(slot != null) {
+					arenaBytes.addAndGet(-slot.buf.capacity());
+				}
+			}
+		}
+
+		ByteBuffer buf;
+		if(slot != null) {
+			hits.incrementAndGet();
+			slot.state.set(Slot.ISSUED);
+			buf = slot.buf;
+			buf.clear();
+		} else {
+			misses.incrementAndGet();
+			buf = ByteBuffer.allocateDirect(sizeClass < NUM_CLASSES ? 1 << (sizeClass + MIN_SIZE_SHIFT) : size);
+			slots.add(new Slot(buf));
+		}
+
+		outstandingBytes.addAndGet(buf.capacity());
+		Map<ByteBuffer, Throwable> leaks = this.leaks;
+		if(leaks != null) {
+			synchronized (leaks) {
+				leaks.put(buf, new Throwable("Buffer of " + buf.capacity() + " bytes acquired here"));
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch it afterwards.
+	 * Buffers the pool did not hand out, or has already had back, are ignored.
+	 */
+	public void release(ByteBuffer buf) {
+		if(!buf.isDirect()) return;
+		Slot slot = slots.get(buf);
+		if(slot == null || !slot.state.compareAndSet(Slot.ISSUED, Slot.FREE)) return;
+
+		Map<ByteBuffer, Throwable> leaks = this.leaks;
+		if(leaks != null) {
+			synchronized (leaks) {
+				leaks.remove(buf);
+			}
+		}
+
+		int capacity = buf.capacity();
+		outstandingBytes.addAndGet(-capacity);
+
+		int sizeClass = sizeClass(capacity);
+		if(sizeClass >= NUM_CLASSES) {
+			drop(slot); // Unpooled
+			return;
+		}
+
+		ThreadCache cache = caches.get();
+		if(cache == null || !cache.push(sizeClass, slot)) {
+			if(arenaBytes.addAndGet(capacity) <= arenaCapacity) {
+				arena[sizeClass].add(slot);
+			} else {
+				arenaBytes.addAndGet(-capacity);
+				drop(slot);
+			}
+		}
+	}
+
+	/**
+	 * Forgets a free buffer, leaving it to the garbage collector.
+	 */
+	void drop(Slot slot) {
+		slot.state.set(Slot.DROPPED);
+		slots.remove(slot);
+	}
+
+	/**
+	 * Starts or stops recording the stack trace of every acquire, so buffers
+	 * that are never released can be traced back to their owner.
+	 */
+	public void setLeakTracking(boolean enabled) {
+		leaks = enabled ? new IdentityHashMap<ByteBuffer, Throwable>() : null;
+	}
+
+	/**
+	 * @return Where each currently unreleased buffer was acquired, if leak
+	 * tracking is enabled.
+	 */
+	public List<Throwable> getLeaks() {
+		Map<ByteBuffer, Throwable> leaks = this.leaks;
+		if(leaks == null) {
+			return new ArrayList<Throwable>(0);
+		}
+		synchronized (leaks) {
+			return new ArrayList<Throwable>(leaks.values());
+		}
+	}
+
+	public void logLeaks() {
+		for(Throwable t : getLeaks()) {
+			LOG.warn("Leaked buffer", t);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getOutstandingBytes() {
+		return outstandingBytes.get();
+	}
+
+	public long getArenaBytes() {
+		return arenaBytes.get();
+	}
+
+	static int sizeClass(int size) {
+		if(size <= 1 << MIN_SIZE_SHIFT) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+	}
+
+	/**
+	 * A buffer allocated by the pool, and whether it is handed out. Free
+	 * buffers are cached as their slots, so acquiring one needs no lookup.
+	 */
+	static class Slot {
+		final static int FREE = 0, ISSUED = 1, DROPPED = 2;
+
+		final ByteBuffer buf;
+		final AtomicInteger state = new AtomicInteger(ISSUED);
+
+		Slot(ByteBuffer buf) {
+			this.buf = buf;
+		}
+	}
+
+	/**
+	 * Open addressed table of slots by buffer identity. Lookups probe
+	 * without locking; adds and removes lock, and a resize publishes a new
+	 * table. A lookup in a table that has since been replaced can still
+	 * find a dropped slot, but its state keeps it from being reused.
+	 */
+	static class Slots {
+		final static Slot REMOVED = new Slot(null);
+		final static int MIN_CAPACITY = 64;
+
+		volatile AtomicReferenceArray<Slot> table = new AtomicReferenceArray<Slot>(MIN_CAPACITY);
+		int size = 0;	//< Slots in the table; guarded by this
+		int used = 0;	//< Entries that are not null, removed ones included; guarded by this
+
+		static int hash(ByteBuffer buf) {
+			int h = System.identityHashCode(buf);
+			return h ^ (h >>> 16);
+		}
+
+		Slot get(ByteBuffer buf) {
+			AtomicReferenceArray<Slot> table = this.table;
+			int mask = table.length() - 1;
+			for(int i = hash(buf) & mask; ; i = (i + 1) & mask) {
+				Slot slot = table.get(i);
+				if(slot == null) return null;
+				if(slot.buf == buf) return slot;
+			}
+		}
+
+		synchronized void add(Slot slot) {
+			if((used + 1) * 2 > table.length()) {
+				resize();
+			}
+			if(insert(table, slot)) {
+				used++;
+			}
+			size++;
+		}
+
+		synchronized void remove(Slot slot) {
+			AtomicReferenceArray<Slot> table = this.table;
+			int mask = table.length() - 1;
+			for(int i = hash(slot.buf) & mask; ; i = (i + 1) & mask) {
+				Slot s = table.get(i);
+				if(s == null) return;
+				if(s == slot) {
+					table.set(i, REMOVED);
+					size--;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Moves the slots into a table a quarter full, leaving removed
+		 * entries behind.
+		 */
+		void resize() {
+			AtomicReferenceArray<Slot> old = table;
+			int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(size, 1) * 4) * 2);
+			AtomicReferenceArray<Slot> table = new AtomicReferenceArray<Slot>(capacity);
+			for(int i = 0; i < old.length(); i++) {
+				Slot slot = old.get(i);
+				if(slot != null && slot != REMOVED) {
+					insert(table, slot);
+				}
+			}
+			this.table = table;
+			used = size;
+		}
+
+		/**
+		 * @return true if the slot took an empty entry, rather than a removed one.
+		 */
+		static boolean insert(AtomicReferenceArray<Slot> table, Slot slot) {
+			int mask = table.length() - 1;
+			for(int i = hash(slot.buf) & mask; ; i = (i + 1) & mask) {
+				Slot s = table.get(i);
+				if(s == null || s == REMOVED) {
+					table.set(i, slot);
+					return s == null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Per-thread stacks of free buffers, one per size class.
+	 */
+	class ThreadCache {
+		final Slot[][] stacks = new Slot[NUM_CLASSES][threadCacheSize];
+		final int[] counts = new int[NUM_CLASSES];
+
+		Slot pop(int sizeClass) {
+			int n = counts[sizeClass];
+			if(n == 0) return null;
+			Slot slot = stacks[sizeClass][--n];
+			stacks[sizeClass][n] = null;
+			counts[sizeClass] = n;
+			return slot;
+		}
+
+		boolean push(int sizeClass, Slot slot) {
+			int n = counts[sizeClass];
+			if(n == threadCacheSize) return false;
+			stacks[sizeClass][n] = slot;
+			counts[sizeClass] = n + 1;
+			return true;
+		}
+	}
+}
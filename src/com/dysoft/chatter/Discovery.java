@@ -0,0 +1,231 @@
+package com.dysoft.chatter;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds peers on the local network. Beacons carrying the node ID and TCP
+ * port are sent to each configured multicast group (and optionally a
+ * broadcast address) at a jittered interval, so nodes booted together do
+ * not announce in lockstep. Beacons received are kept in a cache that
+ * expires silent nodes.
+ *
+ * Of any two nodes, only the one with the lower node ID dials, and never
+ * while it already has a session with, or a connect pending to, the other.
+ *
+ * Everything runs on the manager's boss reactor; configure before start().
+ */
+public class Discovery implements Manager.DatagramSession {
+	protected final static Logger LOG = Logger.getLogger(Discovery.class);
+
+	public final static int DEFAULT_PORT = 12345;
+
+	final PeerManager manager;
+	final int tcpPort;
+	final Random random = new Random();
+
+	int port = DEFAULT_PORT;
+	final List<InetAddress> groups = new ArrayList<InetAddress>();
+	InetAddress broadcastAddress = allHosts();
+	NetworkInterface networkInterface = null;
+	long interval = 1000;
+	double jitter = 0.25;
+	long expiry = 5000;
+
+	DatagramChannel channel;
+	ByteBuffer beacon;
+	final List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+	final Map<Long, Peer> cache = new HashMap<Long, Peer>();
+
+	public Discovery(PeerManager manager, int tcpPort) {
+		this.manager = manager;
+		this.tcpPort = tcpPort;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Adds a multicast group to join and announce to.
+	 */
+	public void addGroup(InetAddress group) {
+		groups.add(group);
+	}
+
+	/**
+	 * Also announce to a broadcast address; 255.255.255.255 by default, null for none.
+	 */
+	public void setBroadcastAddress(InetAddress address) {
+		broadcastAddress = address;
+	}
+
+	/**
+	 * Interface to join groups on. Defaults to the first multicast capable one.
+	 */
+	public void setNetworkInterface(NetworkInterface networkInterface) {
+		this.networkInterface = networkInterface;
+	}
+
+	/**
+	 * @param interval  Mean time between announcements
+	 * @param jitter    Fraction of the interval announcements are randomly moved by
+	 * @param expiry    Time after which a silent node is forgotten
+	 */
+	public void setInterval(long interval, double jitter, long expiry, TimeUnit unit) {
+		this.interval = unit.toMillis(interval);
+		this.jitter = jitter;
+		this.expiry = unit.toMillis(expiry);
+	}
+
+	public void start() throws IOException {
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+		channel.bind(new InetSocketAddress(port));
+
+		if(!groups.isEmpty()) {
+			NetworkInterface ni = networkInterface != null ? networkInterface : defaultInterface();
+			for(InetAddress group : groups) {
+				channel.join(group, ni);
+				targets.add(new InetSocketAddress(group, port));
+			}
+		}
+		if(broadcastAddress != null) {
+			targets.add(new InetSocketAddress(broadcastAddress, port));
+		}
+
+		BeaconMessage msg = new BeaconMessage(manager.getNodeID(), tcpPort);
+		beacon = ByteBuffer.allocateDirect(msg.getEncodedLength());
+		msg.encode(beacon);
+		beacon.flip();
+
+		manager.registerDatagram(channel, this);
+		scheduleAnnounce();
+	}
+
+	void scheduleAnnounce() {
+		long delay = (long)(interval * (1 + jitter * (2 * random.nextDouble() - 1)));
+		manager.boss.schedule(new Manager.Task() {
+			public void run() throws IOException {
+				announce();
+				expire();
+				scheduleAnnounce();
+			}
+		}, Math.max(delay, 1), TimeUnit.MILLISECONDS);
+	}
+
+	void announce() {
+		for(int i = 0; i < targets.size(); i++) {
+			try {
+				beacon.rewind();
+				channel.send(beacon, targets.get(i));
+			} catch (IOException e) {
+				LOG.error("Failed to announce to " + targets.get(i), e);
+			}
+		}
+	}
+
+	void expire() {
+		long now = System.currentTimeMillis();
+		synchronized (cache) {
+			Iterator<Peer> it = cache.values().iterator();
+			while(it.hasNext()) {
+				if(now - it.next().lastSeen > expiry) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void onReceive(ByteBuffer data, SocketAddress source) {
+		Message msg;
+		try {
+			msg = Message.decode(data, manager);
+		} catch (Message.CodecException e) {
+			LOG.debug("Dropped datagram from " + source + ": " + e.getMessage());
+			return;
+		}
+		if(!(msg instanceof BeaconMessage)) return;
+
+		BeaconMessage beacon = (BeaconMessage) msg;
+		if(beacon.getNodeID() == manager.getNodeID()) return;
+
+		Peer peer;
+		synchronized (cache) {
+			peer = cache.get(beacon.getNodeID());
+			InetAddress host = ((InetSocketAddress)source).getAddress();
+			if(peer == null || !peer.address.getAddress().equals(host) || peer.address.getPort() != beacon.getTcpPort()) {
+				peer = new Peer(beacon.getNodeID(), new InetSocketAddress(host, beacon.getTcpPort()));
+				cache.put(peer.nodeID, peer);
+				LOG.debug("Discovered node " + peer.nodeID + " at " + peer.address);
+			}
+			peer.lastSeen = System.currentTimeMillis();
+		}
+
+		if(manager.getNodeID() < peer.nodeID) {
+			manager.dial(peer.nodeID, peer.address);
+		}
+	}
+
+	/**
+	 * @return Addresses of nodes heard from within the expiry time.
+	 */
+	public List<InetSocketAddress> getKnownPeers() {
+		synchronized (cache) {
+			List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>(cache.size());
+			for(Peer peer : cache.values()) {
+				peers.add(peer.address);
+			}
+			return peers;
+		}
+	}
+
+	static InetAddress allHosts() {
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte)255, (byte)255, (byte)255, (byte)255 });
+		} catch (UnknownHostException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static NetworkInterface defaultInterface() throws IOException {
+		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+		while(interfaces.hasMoreElements()) {
+			NetworkInterface ni = interfaces.nextElement();
+			if(ni.isUp() && ni.supportsMulticast() && !ni.isLoopback()) {
+				return ni;
+			}
+		}
+		throw new IOException("No multicast capable network interface");
+	}
+
+	static class Peer {
+		final long nodeID;
+		final InetSocketAddress address;
+		long lastSeen;
+
+		Peer(long nodeID, InetSocketAddress address) {
+			this.nodeID = nodeID;
+			this.address = address;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.dysoft.chatter;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates the frames of one connection. A compressed frame
+ * has Message.COMPRESSED set in its version byte, followed by the length
+ * of the original body as a varint and the raw deflate stream of the body
+ * (type tag onwards).
+ *
+ * Each frame is compressed on its own, but the Deflater and Inflater and
+ * their scratch arrays are kept for the life of the connection rather than
+ * allocated per frame. Compression runs under the sender's wire lock and
+ * decompression on the receiving thread, so each side has its own lock.
+ */
+public class FrameCompressor {
+	final static int MAX_HEADER = FrameDecoder.HEADER_LENGTH + 1 + 5;
+	final static int MAX_RATIO = 1032;	//< Most that deflate can shrink by; longer claims are lies
+	final static int CHUNK = 8192;		//< Inflated at a time
+
+	final BufferPool pool;
+	final ManagerMetrics metrics;
+
+	Deflater deflater;
+	byte[] deflateIn = new byte[0], deflateOut = new byte[0];
+	final Object inflateLock = new Object();	//< Only taken by the receiving thread, and on close
+	Inflater inflater;
+	byte[] inflateIn, inflateOut;	//< Made with the inflater, as most connections never inflate
+	volatile boolean closed = false;
+
+	public FrameCompressor(BufferPool pool, ManagerMetrics metrics) {
+		this.pool = pool;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Compresses an encoded frame, leaving it untouched.
+	 * @return A new flipped frame from the pool, or null if compressing
+	 * would not make the frame smaller.
+	 */
+	public synchronized ByteBuffer compress(ByteBuffer frame, int level) {
+		if(closed) return null;
+		long started = System.nanoTime();
+		int bodyStart = frame.position() + FrameDecoder.HEADER_LENGTH + 1;
+		int length = frame.limit() - bodyStart;
+		if(deflater == null) {
+			deflater = new Deflater(level, true);
+		} else {
+			deflater.reset();
+			deflater.setLevel(level);
+		}
+
+		if(deflateIn.length < length) {
+			deflateIn = new byte[length];
+			deflateOut = new byte[length];
+		}
+		ByteBuffer src = frame.duplicate();
+		src.position(bodyStart);
+		src.get(deflateIn, 0, length);
+		deflater.setInput(deflateIn, 0, length);
+		deflater.finish();
+
+		// The output array is no bigger than the input, so a stream that
+		// does not finish in one call was not worth compressing
+		int n = deflater.deflate(deflateOut, 0, length - Varint.size(length));
+		if(!deflater.finished()) {
+			metrics.compressionSkipped(System.nanoTime() - started);
+			return null;
+		}
+
+		ByteBuffer buf = pool.acquire(MAX_HEADER + n);
+		int start = buf.position();
+		buf.position(start + FrameDecoder.HEADER_LENGTH);
+		buf.put((byte)(frame.get(bodyStart - 1) | Message.COMPRESSED));
+		Varint.putInt(buf, length);
+		buf.put(deflateOut, 0, n);
+		buf.putInt(start, buf.position() - start - FrameDecoder.HEADER_LENGTH);
+		buf.flip();
+		metrics.compressed(length, n, System.nanoTime() - started);
+		return buf;
+	}
+
+	/**
+	 * Inflates a compressed message, from its version byte to the end of
+	 * the buffer. The message is inflated a chunk at a time straight into
+	 * a buffer from the pool, so only the chunk arrays are kept between
+	 * messages.
+	 * @return The message with its flag cleared, in a flipped buffer from
+	 * the pool that the caller must release.
+	 */
+	public ByteBuffer decompress(ByteBuffer data, int maxLength) throws Message.CodecException {
+		long started = System.nanoTime();
+		byte version;
+		int length;
+		try {
+			version = (byte)(data.get() & ~Message.COMPRESSED);
+			length = Varint.getInt(data);
+		} catch (BufferUnderflowException e) {
+			throw new Message.CodecException("Compressed message header truncated");
+		}
+		if(length < 0 || length > maxLength || length > (long)data.remaining() * MAX_RATIO) {
+			throw new Message.CodecException("Bad uncompressed length: " + length + " from " + data.remaining() + " bytes");
+		}
+
+		synchronized (inflateLock) {
+			if(closed) throw new Message.CodecException("Connection closed");
+			if(inflater == null) {
+				inflater = new Inflater(true);
+				inflateIn = new byte[CHUNK];
+				inflateOut = new byte[CHUNK];
+			} else {
+				inflater.reset();
+			}
+
+			ByteBuffer buf = pool.acquire(1 + length);
+			boolean done = false;
+			try {
+				buf.put(version);
+				int inflated = 0;
+				while(!inflater.finished()) {
+					if(inflater.needsInput()) {
+						int read = Math.min(data.remaining(), CHUNK);
+						if(read == 0) throw new Message.CodecException("Compressed message truncated");
+						data.get(inflateIn, 0, read);
+						inflater.setInput(inflateIn, 0, read);
+					}
+					int n = inflater.inflate(inflateOut);
+					if(n == 0 && inflater.needsDictionary()) {
+						throw new Message.CodecException("Corrupt compressed message: needs a dictionary");
+					}
+					inflated += n;
+					if(inflated > length) break;
+					buf.put(inflateOut, 0, n);
+				}
+				if(inflated != length) {
+					throw new Message.CodecException("Compressed message length mismatch");
+				}
+				buf.flip();
+				done = true;
+			} catch (DataFormatException e) {
+				throw new Message.CodecException("Corrupt compressed message: " + e.getMessage());
+			} finally {
+				if(!done) {
+					pool.release(buf);
+				}
+			}
+			metrics.decompressed(System.nanoTime() - started);
+			return buf;
+		}
+	}
+
+	/**
+	 * Frees the native state. Called on every path that closes the
+	 * connection, from any thread, and may be called more than once.
+	 */
+	public void end() {
+		synchronized (this) {
+			closed = true;
+			if(deflater != null) {
+				deflater.end();
+			}
+		}
+		synchronized (inflateLock) {
+			if(inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.dysoft.chatter;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a TCP byte stream into length-prefixed frames. Each frame is a
+ * 4 byte big-endian length followed by that many bytes of payload.
+ *
+ * Complete frames are passed to the wrapped session as slices of the
+ * received buffer, without copying. Only a trailing partial frame is copied
+ * into the per-connection accumulation buffer, which grows as required so
+ * frames may be larger than the read buffer. Slices are only valid for the
+ * duration of the onReceive call.
+ */
+public class FrameDecoder implements TransportSession {
+	protected final static Logger LOG = Logger.getLogger(FrameDecoder.class);
+
+	public final static int HEADER_LENGTH = 4;
+	public final static int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	final Transport transport;
+	final TransportSession session;
+	final int maxFrameLength;
+
+	ByteBuffer accumulator = null;
+	boolean closed = false;
+	long frames = 0;
+
+	public FrameDecoder(Transport transport, TransportSession session, int maxFrameLength) {
+		this.transport = transport;
+		this.session = session;
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public FrameDecoder(Transport transport, TransportSession session) {
+		this(transport, session, DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public void onReceive(ByteBuffer data) {
+		if(closed) return;
+
+		if(accumulator != null && accumulator.position() > 0) {
+			// Complete the partial frame first, then carry on from the read buffer
+			int needed = bytesNeeded(accumulator);
+			while(needed > 0 && data.hasRemaining()) {
+				ensureCapacity(needed);
+				int n = Math.min(needed, data.remaining());
+				ByteBuffer chunk = data.duplicate();
+				chunk.limit(chunk.position() + n);
+				accumulator.put(chunk);
+				data.position(data.position() + n);
+				needed = bytesNeeded(accumulator);
+			}
+			if(closed || needed > 0) return;
+
+			accumulator.flip();
+			if(!deliverFrames(accumulator)) return;
+			accumulator.clear();
+		}
+
+		if(deliverFrames(data) && data.hasRemaining()) {
+			ensureCapacity(data.remaining());
+			accumulator.put(data);
+		}
+	}
+
+	/**
+	 * @return Number of frames delivered.
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	public void onClose() {
+		closed = true;
+		accumulator = null;
+		session.onClose();
+	}
+
+	/**
+	 * Delivers every complete frame in the buffer, leaving its position at
+	 * the start of the first incomplete frame.
+	 * @return false if the stream is corrupt and the transport has been closed.
+	 */
+	boolean deliverFrames(ByteBuffer buf) {
+		while(buf.remaining() >= HEADER_LENGTH) {
+			int start = buf.position();
+			int length = buf.getInt(start);
+			if(length < 0 || length > maxFrameLength) {
+				fail("Invalid frame length: " + length);
+				return false;
+			}
+			if(buf.remaining() < HEADER_LENGTH + length) break;
+
+			int end = start + HEADER_LENGTH + length;
+			int limit = buf.limit();
+			buf.position(start + HEADER_LENGTH).limit(end);
+			ByteBuffer frame = buf.slice();
+			buf.limit(limit).position(end);
+
+			frames++;
+			session.onReceive(frame);
+			if(closed) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Number of bytes still needed to complete the header or frame
+	 * being accumulated.
+	 */
+	int bytesNeeded(ByteBuffer acc) {
+		int have = acc.position();
+		if(have < HEADER_LENGTH) {
+			return HEADER_LENGTH - have;
+		}
+		int length = acc.getInt(0);
+		if(length < 0 || length > maxFrameLength) {
+			fail("Invalid frame length: " + length);
+			return 0;
+		}
+		return HEADER_LENGTH + length - have;
+	}
+
+	void ensureCapacity(int extra) {
+		if(accumulator == null) {
+			accumulator = ByteBuffer.allocate(Math.max(extra, 1024));
+		} else if(accumulator.remaining() < extra) {
+			int capacity = accumulator.capacity();
+			while(capacity - accumulator.position() < extra) {
+				capacity <<= 1;
+			}
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			accumulator.flip();
+			grown.put(accumulator);
+			accumulator = grown;
+		}
+	}
+
+	void fail(String reason) {
+		LOG.error("Closing transport to " + transport.getSocketAddress() + ": " + reason);
+		closed = true;
+		accumulator = null;
+		try {
+			transport.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		session.onClose();
+	}
+}
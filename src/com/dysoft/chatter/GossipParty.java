@@ -0,0 +1,503 @@
+package com.dysoft.chatter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A party without a leader, whose membership spreads by gossip in the
+ * manner of SWIM. Each protocol period every member pings one other, in a
+ * shuffled round robin. If no ack arrives within the probe timeout, it
+ * asks a few other members to ping the target for it. If none of those
+ * gets an ack by the end of the period, the target is suspected. Suspects
+ * that do not refute it, by gossiping a higher incarnation, are declared
+ * dead after the suspicion timeout.
+ *
+ * Joins, suspicions and deaths ride on the probes and acks, a few per
+ * message, each until it has been sent a small multiple of log(N) times.
+ * An update therefore reaches the whole party in O(log N) periods, and no
+ * member's load grows with the party's size. Rumours can still retire
+ * before reaching everyone when many members join at once, so every few
+ * periods a ping also asks for the target's full state, which repairs
+ * anything missed at a cost spread over the sync interval.
+ *
+ * Members are probed over the manager's existing peer sessions, found by
+ * node ID; members with no session are skipped. Discovery keeps a full mesh
+ * on a LAN. Dead members are remembered, so stale gossip cannot bring them
+ * back; they may rejoin with a higher incarnation.
+ *
+ * Everything runs on the manager's boss reactor or the sessions' threads,
+ * under the party's lock.
+ */
+public class GossipParty extends Party {
+	final static int MAX_PIGGYBACK = 8;	//< Updates per message
+
+	final PeerManager manager;
+	final PartyMember me;
+	final long nodeID;
+	final Random random = new Random();
+
+	long period = 1000;			//< Protocol period, ms
+	long probeTimeout = 300;	//< Until indirect probes are sent, ms
+	int indirectProbes = 3;
+	int suspicionMultiplier = 4;
+	int retransmitMultiplier = 3;
+	int syncInterval = 30;		//< Periods between full state pulls, 0 for none
+	int untilSync;
+
+	int incarnation = 0;
+	final Map<String, Node> nodes = new HashMap<String, Node>();	//< Everyone but us, dead included
+	final Map<Long, Node> byNodeID = new HashMap<Long, Node>();
+	final List<Node> probeOrder = new ArrayList<Node>();
+	int probeIndex = 0;
+	int seq = 0;
+	final Map<Integer, Pending> pending = new HashMap<Integer, Pending>();
+	final List<Rumour> rumours = new ArrayList<Rumour>();
+	TimingWheel.Timeout timeout = null;
+
+	public GossipParty(PeerManager manager, long id, PartyMember me) {
+		this(manager, id, me, manager.getNodeID());
+	}
+
+	/**
+	 * @param nodeID  This node's ID, so that simulations can run many nodes
+	 *                on one manager
+	 */
+	GossipParty(PeerManager manager, long id, PartyMember me, long nodeID) {
+		super(id, me);
+		this.manager = manager;
+		this.me = me;
+		this.nodeID = nodeID;
+		untilSync = random.nextInt(syncInterval) + 1; // Spread out the pulls
+		setState(new GossipState());
+		gossip(new PartyMessage.Update(PartyMessage.Update.ALIVE, incarnation, nodeID, me));
+	}
+
+	/**
+	 * @param period        Protocol period
+	 * @param probeTimeout  Time to wait for a direct ack; less than the period
+	 */
+	public synchronized void setTiming(long period, long probeTimeout, TimeUnit unit) {
+		this.period = unit.toMillis(period);
+		this.probeTimeout = unit.toMillis(probeTimeout);
+	}
+
+	/**
+	 * @param indirectProbes        Members asked to ping a target that missed its ack
+	 * @param suspicionMultiplier   Suspicion timeout, in periods, per order of magnitude of N
+	 * @param retransmitMultiplier  Sends of each update, per order of magnitude of N
+	 */
+	public synchronized void setLimits(int indirectProbes, int suspicionMultiplier, int retransmitMultiplier) {
+		this.indirectProbes = indirectProbes;
+		this.suspicionMultiplier = suspicionMultiplier;
+		this.retransmitMultiplier = retransmitMultiplier;
+	}
+
+	/**
+	 * @param periods  Protocol periods between pulls of a member's full
+	 *                 state, or 0 to rely on gossip alone
+	 */
+	public synchronized void setSyncInterval(int periods) {
+		syncInterval = periods;
+		untilSync = periods > 0 ? random.nextInt(periods) + 1 : 0;
+	}
+
+	/**
+	 * Starts the protocol, joining through a peer already in the party, or
+	 * with null if this is the first member. Does nothing if already started.
+	 */
+	public synchronized void start(PeerSession seed) {
+		if(timeout != null) return;
+		if(seed != null) {
+			send(seed, probe(PartyMessage.Type.PING, ++seq, nodeID, 0));
+		}
+		schedule();
+	}
+
+	public synchronized void stop() {
+		if(timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+	}
+
+	void schedule() {
+		timeout = schedule(new Manager.Task() {
+			public void run() {
+				tick();
+			}
+		}, period);
+	}
+
+	/**
+	 * Arms a timeout on the boss reactor.
+	 */
+	TimingWheel.Timeout schedule(Manager.Task task, long delay) {
+		return manager.boss.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The session to a member's node, or null if there is none.
+	 */
+	PeerSession getPeer(long nodeID) {
+		return manager.getPeer(nodeID);
+	}
+
+	/**
+	 * Ends the last protocol period and starts the next.
+	 */
+	synchronized void tick() {
+		if(timeout == null) return; // Stopped
+		long now = System.currentTimeMillis();
+
+		Iterator<Pending> it = pending.values().iterator();
+		while(it.hasNext()) {
+			Pending p = it.next();
+			if(p.requester == null && !p.acked && p.target.status == PartyMessage.Update.ALIVE) {
+				suspect(p.target, now);
+			}
+			it.remove();
+		}
+
+		long suspicion = suspicionMultiplier * period * scale();
+		for(Node node : nodes.values()) {
+			if(node.status == PartyMessage.Update.SUSPECT && now - node.suspectedAt > suspicion) {
+				LOG.info("Member " + node.member.name + " failed");
+				die(node);
+				gossip(node.update());
+			}
+		}
+
+		probe();
+		schedule();
+	}
+
+	/**
+	 * Pings the next member in the probe order.
+	 */
+	void probe() {
+		Node target = nextTarget();
+		if(target == null) return;
+		PeerSession session = getPeer(target.nodeID);
+		if(session == null) return;
+
+		final Pending p = new Pending(++seq, target, null, 0);
+		pending.put(p.seq, p);
+		// Naming ourselves as the target asks for the full state
+		boolean sync = syncInterval > 0 && --untilSync <= 0;
+		if(sync) {
+			untilSync = syncInterval;
+		}
+		send(session, probe(PartyMessage.Type.PING, p.seq, nodeID, sync ? nodeID : 0));
+		schedule(new Manager.Task() {
+			public void run() {
+				probeIndirectly(p);
+			}
+		}, probeTimeout);
+	}
+
+	synchronized void probeIndirectly(Pending p) {
+		if(p.acked || pending.get(p.seq) != p) return;
+
+		List<Node> helpers = new ArrayList<Node>();
+		for(Node node : nodes.values()) {
+			if(node != p.target && node.status == PartyMessage.Update.ALIVE) {
+				helpers.add(node);
+			}
+		}
+		Collections.shuffle(helpers, random);
+		int sent = 0;
+		for(int i = 0; i < helpers.size() && sent < indirectProbes; i++) {
+			PeerSession session = getPeer(helpers.get(i).nodeID);
+			if(session == null) continue;
+			send(session, probe(PartyMessage.Type.PING_REQ, p.seq, nodeID, p.target.nodeID));
+			sent++;
+		}
+	}
+
+	Node nextTarget() {
+		for(int tries = 0; tries <= probeOrder.size(); tries++) {
+			if(probeIndex >= probeOrder.size()) {
+				// Rebuilt each round, so new members are probed within a round
+				probeOrder.clear();
+				for(Node node : nodes.values()) {
+					if(node.status != PartyMessage.Update.DEAD) {
+						probeOrder.add(node);
+					}
+				}
+				if(probeOrder.isEmpty()) return null;
+				Collections.shuffle(probeOrder, random);
+				probeIndex = 0;
+			}
+			Node node = probeOrder.get(probeIndex++);
+			if(node.status != PartyMessage.Update.DEAD) return node;
+		}
+		return null;
+	}
+
+	/**
+	 * Called on the session's thread for each probe it receives.
+	 */
+	synchronized void onProbe(PeerSession session, PartyMessage.Probe msg) {
+		// PINGs and PING_REQs come straight from their sender, so index the
+		// session under it; peers that dialed us are found for PING_REQs
+		if(msg.getProbeType() != PartyMessage.Type.PING_ACK
+				&& msg.getFrom() != 0 && session.getNodeID() != msg.getFrom()) {
+			manager.bindNode(session, msg.getFrom());
+		}
+		boolean joining = msg.getProbeType() == PartyMessage.Type.PING && !isKnown(msg.getFrom());
+		List<PartyMessage.Update> updates = msg.getUpdates();
+		for(int i = 0, n = updates.size(); i < n; i++) {
+			apply(updates.get(i));
+		}
+
+		switch(msg.getProbeType()) {
+			case PING:
+				PartyMessage.Probe ack;
+				if(joining) {
+					ack = fullState(msg.getSeq(), msg.getFrom());
+				} else if(msg.getTarget() == msg.getFrom()) {
+					ack = fullState(msg.getSeq(), 0);
+				} else {
+					ack = probe(PartyMessage.Type.PING_ACK, msg.getSeq(), nodeID, 0);
+				}
+				send(session, ack);
+				break;
+
+			case PING_REQ:
+				PeerSession target = getPeer(msg.getTarget());
+				Node node = nodeFor(msg.getTarget());
+				if(target == null || node == null) break;
+				Pending p = new Pending(++seq, node, session, msg.getSeq());
+				pending.put(p.seq, p);
+				send(target, probe(PartyMessage.Type.PING, p.seq, nodeID, 0));
+				break;
+
+			case PING_ACK:
+				if(msg.getTarget() == nodeID) {
+					// Our join was missed, and its rumour may have retired
+					gossip(new PartyMessage.Update(PartyMessage.Update.ALIVE, incarnation, nodeID, me));
+				}
+				Pending waiting = pending.get(msg.getSeq());
+				if(waiting == null || waiting.target.nodeID != msg.getFrom()) break;
+				waiting.acked = true;
+				if(waiting.requester != null) {
+					pending.remove(waiting.seq);
+					send(waiting.requester, probe(PartyMessage.Type.PING_ACK, waiting.requesterSeq, msg.getFrom(), 0));
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Merges an update with what we know, gossiping it on if it is news.
+	 */
+	void apply(PartyMessage.Update u) {
+		if(u.member.name.equals(me.name)) {
+			if(u.status != PartyMessage.Update.ALIVE && u.incarnation >= incarnation) {
+				incarnation = u.incarnation + 1; // Refute
+				gossip(new PartyMessage.Update(PartyMessage.Update.ALIVE, incarnation, nodeID, me));
+			}
+			return;
+		}
+
+		Node node = nodes.get(u.member.name);
+		if(node == null) {
+			if(u.status == PartyMessage.Update.DEAD) return;
+			node = new Node(u.member, u.nodeID);
+			nodes.put(u.member.name, node);
+			byNodeID.put(u.nodeID, node);
+			node.incarnation = u.incarnation;
+			node.status = u.status;
+			node.suspectedAt = System.currentTimeMillis();
+			addMember(u.member);
+			gossip(u);
+			return;
+		}
+
+		switch(u.status) {
+			case PartyMessage.Update.ALIVE:
+				if(u.incarnation <= node.incarnation) return;
+				if(node.status == PartyMessage.Update.DEAD) {
+					addMember(u.member);
+				}
+				node.member = u.member;
+				if(node.nodeID != u.nodeID) {
+					byNodeID.remove(node.nodeID);
+					node.nodeID = u.nodeID;
+				}
+				byNodeID.put(node.nodeID, node);
+				node.status = PartyMessage.Update.ALIVE;
+				break;
+
+			case PartyMessage.Update.SUSPECT:
+				if(node.status == PartyMessage.Update.DEAD || u.incarnation < node.incarnation) return;
+				if(u.incarnation == node.incarnation && node.status != PartyMessage.Update.ALIVE) return;
+				node.status = PartyMessage.Update.SUSPECT;
+				node.suspectedAt = System.currentTimeMillis();
+				break;
+
+			case PartyMessage.Update.DEAD:
+				if(node.status == PartyMessage.Update.DEAD || u.incarnation < node.incarnation) return;
+				die(node);
+				break;
+
+			default:
+				return;
+		}
+		node.incarnation = u.incarnation;
+		gossip(u);
+	}
+
+	void suspect(Node node, long now) {
+		node.status = PartyMessage.Update.SUSPECT;
+		node.suspectedAt = now;
+		gossip(node.update());
+	}
+
+	void die(Node node) {
+		node.status = PartyMessage.Update.DEAD;
+		removeMember(node.member);
+	}
+
+	/**
+	 * Queues an update to be piggybacked, replacing any older one about the
+	 * same member.
+	 */
+	void gossip(PartyMessage.Update u) {
+		for(int i = 0; i < rumours.size(); i++) {
+			if(rumours.get(i).update.member.name.equals(u.member.name)) {
+				rumours.remove(i);
+				break;
+			}
+		}
+		rumours.add(new Rumour(u));
+	}
+
+	/**
+	 * Builds a probe carrying the least sent updates, retiring those that
+	 * have now been sent enough times.
+	 */
+	PartyMessage.Probe probe(PartyMessage.Type type, int seq, long from, long target) {
+		Collections.sort(rumours, LEAST_SENT);
+		int limit = retransmitMultiplier * scale();
+		int n = Math.min(rumours.size(), MAX_PIGGYBACK);
+		List<PartyMessage.Update> updates = new ArrayList<PartyMessage.Update>(n);
+		for(int i = 0; i < n; i++) {
+			Rumour r = rumours.get(i);
+			updates.add(r.update);
+			r.transmits++;
+		}
+		for(int i = rumours.size() - 1; i >= 0; i--) {
+			if(rumours.get(i).transmits >= limit) {
+				rumours.remove(i);
+			}
+		}
+		return new PartyMessage.Probe(type, 0, id, seq, from, target, updates);
+	}
+
+	/**
+	 * An ack telling the pinging member everything we know. One that had not
+	 * been heard of is named as the target, telling it to spread its own
+	 * ALIVE again.
+	 */
+	PartyMessage.Probe fullState(int seq, long to) {
+		List<PartyMessage.Update> updates = new ArrayList<PartyMessage.Update>(nodes.size() + 1);
+		updates.add(new PartyMessage.Update(PartyMessage.Update.ALIVE, incarnation, nodeID, me));
+		for(Node node : nodes.values()) {
+			updates.add(node.update());
+		}
+		return new PartyMessage.Probe(PartyMessage.Type.PING_ACK, 0, id, seq, nodeID, to, updates);
+	}
+
+	void send(PeerSession session, PartyMessage.Probe msg) {
+		try {
+			session.send(msg);
+		} catch (IOException e) {
+			LOG.error("Failed to send probe", e);
+		}
+	}
+
+	/**
+	 * @return 1 + floor(log10(N + 1)), the factor timeouts and
+	 * retransmissions grow by with the party's size.
+	 */
+	int scale() {
+		int scale = 1;
+		for(int n = (nodes.size() + 1) / 10; n > 0; n /= 10) {
+			scale++;
+		}
+		return scale;
+	}
+
+	boolean isKnown(long nodeID) {
+		return byNodeID.containsKey(nodeID);
+	}
+
+	Node nodeFor(long nodeID) {
+		return byNodeID.get(nodeID);
+	}
+
+	final static Comparator<Rumour> LEAST_SENT = new Comparator<Rumour>() {
+		public int compare(Rumour a, Rumour b) {
+			return a.transmits - b.transmits;
+		}
+	};
+
+	static class Node {
+		PartyMember member;
+		long nodeID;
+		int incarnation;
+		byte status = PartyMessage.Update.ALIVE;
+		long suspectedAt;
+
+		Node(PartyMember member, long nodeID) {
+			this.member = member;
+			this.nodeID = nodeID;
+		}
+
+		PartyMessage.Update update() {
+			return new PartyMessage.Update(status, incarnation, nodeID, member);
+		}
+	}
+
+	/**
+	 * A probe awaiting its ack; for PING_REQs, on behalf of the requester.
+	 */
+	static class Pending {
+		final int seq;
+		final Node target;
+		final PeerSession requester;
+		final int requesterSeq;
+		boolean acked = false;
+
+		Pending(int seq, Node target, PeerSession requester, int requesterSeq) {
+			this.seq = seq;
+			this.target = target;
+			this.requester = requester;
+			this.requesterSeq = requesterSeq;
+		}
+	}
+
+	static class Rumour {
+		final PartyMessage.Update update;
+		int transmits = 0;
+
+		Rumour(PartyMessage.Update update) {
+			this.update = update;
+		}
+	}
+
+	/**
+	 * Gossip parties do not merge through a leader.
+	 */
+	class GossipState extends NullState {
+	}
+}
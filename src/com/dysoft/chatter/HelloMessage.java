@@ -0,0 +1,72 @@
+package com.dysoft.chatter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A heartbeat carrying the highest wire format version the sender
+ * supports, sent in version 1 as each session starts. Each end then sends
+ * with the highest version both support. Plain heartbeats have no body, so
+ * peers that predate negotiation just see a heartbeat.
+ *
+ * A second byte carries capability flags, and then comes the sender's
+ * node ID, so that each end can index the session by node whichever side
+ * dialed. Hellos without them come from peers with no capabilities, whose
+ * node ID is not known.
+ */
+public class HelloMessage extends Message {
+	final static Message HEARTBEAT = new Message(Type.HEARTBEAT);
+
+	public final static int INFLATE = 1;	//< Accepts compressed messages
+
+	final int maxVersion;
+	final int flags;
+	final long nodeID;
+
+	public HelloMessage(int maxVersion, int flags, long nodeID) {
+		super(Type.HEARTBEAT);
+		this.maxVersion = maxVersion;
+		this.flags = flags;
+		this.nodeID = nodeID;
+	}
+
+	@Override
+	public int getEncodedLength() {
+		return super.getEncodedLength() + 10;
+	}
+
+	@Override
+	void encode(ByteBuffer buf) {
+		super.encode(buf);
+		buf.put((byte)maxVersion);
+		buf.put((byte)flags);
+		buf.putLong(nodeID);
+	}
+
+	public int getMaxVersion() {
+		return maxVersion;
+	}
+
+	public boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * @return The sender's node ID, or 0 if it did not say.
+	 */
+	public long getNodeID() {
+		return nodeID;
+	}
+
+	/**
+	 * Decodes heartbeats, returning a shared instance for those without a body.
+	 */
+	final static Codec CODEC = new Codec() {
+		public Message decode(ByteBuffer buf, Manager manager) {
+			if(!buf.hasRemaining()) return HEARTBEAT;
+			int maxVersion = buf.get() & 0xff;
+			int flags = buf.hasRemaining() ? buf.get() & 0xff : 0;
+			long nodeID = buf.remaining() >= 8 ? buf.getLong() : 0;
+			return new HelloMessage(maxVersion, flags, nodeID);
+		}
+	};
+}
@@ -0,0 +1,61 @@
+package com.dysoft.chatter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies in
+ * nanoseconds, in power-of-two buckets. Recording costs a few atomic adds
+ * and no allocation. Percentiles are reported as the upper bound of their
+ * bucket, so are accurate to within a factor of two.
+ */
+public class Histogram {
+	final AtomicLongArray buckets = new AtomicLongArray(64); //< Bucket b holds values < 2^b
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong sum = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if(value < 0) value = 0;
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param p  Fraction of values, e.g. 0.99
+	 * @return Upper bound of the bucket holding the pth value, or 0 if empty.
+	 */
+	public long getPercentile(double p) {
+		long n = count.get();
+		if(n == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(n * p));
+		long seen = 0;
+		for(int b = 0; b < 64; b++) {
+			seen += buckets.get(b);
+			if(seen >= target) {
+				return b == 0 ? 0 : Math.min((1L << b) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+}
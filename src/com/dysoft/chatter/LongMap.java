@@ -0,0 +1,185 @@
+package com.dysoft.chatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from primitive long keys to values, for registries that are read far
+ * more often than written. Lookups are lock-free and allocate nothing: they
+ * probe an open-addressed table of immutable entries, one volatile read per
+ * slot. Writes are serialised and set their slot in place; only growing the
+ * table, or clearing out removed entries, copies it, so a write costs O(1)
+ * amortised however large the map.
+ *
+ * Null values are not allowed.
+ */
+public class LongMap<V> {
+	final static Entry REMOVED = new Entry(0, null);
+	final static int MIN_CAPACITY = 8;
+
+	volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+	volatile int size = 0;
+	int used = 0;	//< Slots not null, removed ones included; guarded by this
+	volatile List<V> values = null;	//< Snapshot, made on demand after each write
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Entry entry = find(table, key);
+		return entry == null ? null : (V) entry.value;
+	}
+
+	public boolean containsKey(long key) {
+		return find(table, key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public synchronized V put(long key, V value) {
+		if(value == null) throw new NullPointerException();
+
+		Entry entry = new Entry(key, value);
+		AtomicReferenceArray<Entry> t = table;
+		int i = indexOf(t, key);
+		values = null;
+		if(i >= 0) {
+			return (V) t.getAndSet(i, entry).value;
+		}
+
+		if((used + 1) * 2 > t.length()) {
+			t = rebuild(size + 1);
+		}
+		if(insert(t, entry)) {
+			used++;
+		}
+		size++;
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key) {
+		AtomicReferenceArray<Entry> t = table;
+		int i = indexOf(t, key);
+		if(i < 0) return null;
+		values = null;
+		size--;
+		return (V) t.getAndSet(i, REMOVED).value;
+	}
+
+	/**
+	 * Removes the key only if it maps to the given value.
+	 * @return true if removed.
+	 */
+	public synchronized boolean remove(long key, V value) {
+		AtomicReferenceArray<Entry> t = table;
+		int i = indexOf(t, key);
+		if(i < 0 || t.get(i).value != value) return false;
+		values = null;
+		size--;
+		t.set(i, REMOVED);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return An unmodifiable snapshot of the values, unaffected by later writes.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> v = values;
+		if(v != null) return v;
+		synchronized (this) {
+			if(values == null) {
+				AtomicReferenceArray<Entry> t = table;
+				List<V> all = new ArrayList<V>(size);
+				for(int i = 0; i < t.length(); i++) {
+					Entry entry = t.get(i);
+					if(entry != null && entry != REMOVED) {
+						all.add((V) entry.value);
+					}
+				}
+				values = Collections.unmodifiableList(all);
+			}
+			return values;
+		}
+	}
+
+	static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Reads each slot once, as writers may change it meanwhile.
+	 */
+	static Entry find(AtomicReferenceArray<Entry> t, long key) {
+		int mask = t.length() - 1;
+		for(int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			Entry entry = t.get(i);
+			if(entry == null) return null;
+			if(entry != REMOVED && entry.key == key) return entry;
+		}
+	}
+
+	/**
+	 * @return Slot holding the key, or -1. Only for writers.
+	 */
+	static int indexOf(AtomicReferenceArray<Entry> t, long key) {
+		int mask = t.length() - 1;
+		for(int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			Entry entry = t.get(i);
+			if(entry == null) return -1;
+			if(entry != REMOVED && entry.key == key) return i;
+		}
+	}
+
+	/**
+	 * @return true if the entry took an empty slot, rather than a removed one.
+	 */
+	static boolean insert(AtomicReferenceArray<Entry> t, Entry entry) {
+		int mask = t.length() - 1;
+		for(int i = hash(entry.key) & mask; ; i = (i + 1) & mask) {
+			Entry e = t.get(i);
+			if(e == null || e == REMOVED) {
+				t.set(i, entry);
+				return e == null;
+			}
+		}
+	}
+
+	/**
+	 * Publishes a copy of the table, at most a quarter full with the given
+	 * number of entries, and without removed ones.
+	 */
+	AtomicReferenceArray<Entry> rebuild(int size) {
+		AtomicReferenceArray<Entry> old = table;
+		int capacity = MIN_CAPACITY;
+		while(size * 4 > capacity) {
+			capacity <<= 1;
+		}
+
+		AtomicReferenceArray<Entry> t = new AtomicReferenceArray<Entry>(capacity);
+		for(int i = 0; i < old.length(); i++) {
+			Entry entry = old.get(i);
+			if(entry != null && entry != REMOVED) {
+				insert(t, entry);
+			}
+		}
+		used = this.size;
+		table = t;
+		return t;
+	}
+
+	static class Entry {
+		final long key;
+		final Object value;
+
+		Entry(long key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
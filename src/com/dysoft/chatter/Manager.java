@@ -2,35 +2,81 @@ package com.dysoft.chatter;
 
 import org.apache.log4j.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Sean Micklethwaite
  *         Aug 14, 2010 6:58:47 PM
  */
-public abstract class Manager implements Runnable {
+public abstract class Manager {
 	protected final static Logger LOG = Logger.getLogger(Manager.class);
+	static final int READ_BUFFER_SIZE = 8192;
+	static final int MAX_TASKS_PER_LOOP = 1024;
+	static final int MAX_GATHER = 64;
+	static final int MAX_DATAGRAM_SIZE = 65536;
+	static final int MAX_DATAGRAMS_PER_READ = 64;
 
-	final Selector selector;
-	final Stack<ByteBuffer> bufferPool = new Stack<ByteBuffer>();
-	final Queue<Callable<Boolean>> priorityTasks = new ArrayDeque<Callable<Boolean>>();
-	final Queue<Callable<Boolean>> tasks = new ArrayDeque<Callable<Boolean>>();
+	final BufferPool bufferPool = new BufferPool();
+	final ManagerMetrics metrics = new ManagerMetrics(this);
+	final Reactor boss;
+	final Reactor[] workers;
+	int nextWorker = 0;
 
-	Thread thread = null;
+	final Queue<PendingConnect> connectQueue = new ConcurrentLinkedQueue<PendingConnect>();
+	final AtomicInteger pendingConnects = new AtomicInteger();
+	volatile int maxPendingConnects = 256;
+	volatile long connectTimeout = TimeUnit.SECONDS.toNanos(5);
+
+	volatile int lowWatermark = 256 * 1024;
+	volatile int highWatermark = 1024 * 1024;
+	volatile int sendQueueLimit = 16 * 1024 * 1024;
+	volatile OverflowPolicy overflowPolicy = OverflowPolicy.CLOSE;
+
+	volatile long heartbeatInterval = TimeUnit.SECONDS.toNanos(1);
+	volatile long heartbeatTimeout = TimeUnit.SECONDS.toNanos(5);
+
+	volatile Executor dispatchExecutor = null;
+
+	/** Frame sent on links that have been quiet for the heartbeat interval */
+	final static ByteBuffer HEARTBEAT_FRAME = ByteBuffer.wrap(new byte[] {
+			0, 0, 0, 2, Message.VERSION, Message.Type.HEARTBEAT.tag }).asReadOnlyBuffer();
 
 
 	protected Manager() throws IOException {
-		selector = SelectorProvider.provider().openSelector();
-		thread = new Thread(this, getClass().getName());
-		thread.start();
-		bufferPool.add(ByteBuffer.allocate(1024));
+		this(1);
+	}
+
+	/**
+	 * @param numWorkers  Number of selector threads to spread connections
+	 *                    over. With more than one, a separate boss thread
+	 *                    accepts connections and hands them to the workers.
+	 */
+	protected Manager(int numWorkers) throws IOException {
+		if(numWorkers <= 1) {
+			boss = new Reactor(getClass().getName());
+			workers = new Reactor[] { boss };
+		} else {
+			boss = new Reactor(getClass().getName() + "-boss");
+			workers = new Reactor[numWorkers];
+			for(int i = 0; i < numWorkers; i++) {
+				workers[i] = new Reactor(getClass().getName() + "-worker-" + i);
+			}
+		}
 	}
 
 	public void listen(String address, int port, final Dispatcher dispatcher) throws IOException {
@@ -40,205 +86,1163 @@ public abstract class Manager implements Runnable {
 		channel.configureBlocking(false);
 		channel.socket().bind(isa);
 
-		synchronized (tasks) {
-			priorityTasks.add(new Callable<Boolean>() {
-				public Boolean call() throws Exception {
-					channel.register(selector, SelectionKey.OP_ACCEPT, dispatcher);
-					return true;
+		boss.execute(true, new Task() {
+			public void run() throws IOException {
+				channel.register(boss.selector, SelectionKey.OP_ACCEPT, dispatcher);
+			}
+		});
+	}
+
+	/**
+	 * Starts connecting to a peer without blocking. Once connected the
+	 * dispatcher's onConnect is called on the transport's reactor thread;
+	 * if the connect fails or times out, onConnectFailed is called instead.
+	 * Connects beyond the in-flight limit are queued.
+	 */
+	public SocketTransport<SocketChannel> connect(InetSocketAddress isa, final Dispatcher dispatcher) throws IOException {
+		final SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		final SocketTransport<SocketChannel> transport = new SocketTransport<SocketChannel>(nextWorker(), channel, isa);
+		connectQueue.add(new PendingConnect(transport, dispatcher));
+		startConnects();
+		return transport;
+	}
+
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		connectTimeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * @param max  Maximum number of connects in flight at once
+	 */
+	public void setMaxPendingConnects(int max) {
+		maxPendingConnects = max;
+		startConnects();
+	}
+
+	/**
+	 * Sets the send queue limits for transports created from now on. A
+	 * transport becomes unwritable when its queue reaches the high watermark,
+	 * and writable again once it drains to the low watermark.
+	 */
+	public void setWatermarks(int low, int high) {
+		lowWatermark = low;
+		highWatermark = high;
+	}
+
+	/**
+	 * Sets what happens when a send would take a transport's queue past
+	 * the hard limit, for transports created from now on.
+	 */
+	public void setSendQueueLimit(int bytes, OverflowPolicy policy) {
+		sendQueueLimit = bytes;
+		overflowPolicy = policy;
+	}
+
+	/**
+	 * Sets how connections are checked for liveness. Each reactor sweeps its
+	 * connections once per interval: a heartbeat is sent on any that has
+	 * sent nothing for the interval, and any that has received nothing for
+	 * the timeout is closed. The timeout should allow for a couple of missed
+	 * heartbeats.
+	 * @param interval  0 to disable heartbeats
+	 */
+	public void setHeartbeat(long interval, long timeout, TimeUnit unit) {
+		heartbeatInterval = unit.toNanos(interval);
+		heartbeatTimeout = unit.toNanos(timeout);
+		for(final Reactor reactor : reactors()) {
+			reactor.execute(true, new Task() {
+				public void run() throws IOException {
+					reactor.startSweep();
 				}
 			});
 		}
-		selector.wakeup();
 	}
 
-	public SocketTransport<SocketChannel> connect(InetSocketAddress isa, final Dispatcher dispatcher) throws IOException {
-		final SocketChannel channel = SocketChannel.open(isa);
-		channel.finishConnect();
-		final SocketTransport<SocketChannel> transport = new SocketTransport<SocketChannel>(channel, isa);
-		return register(transport, dispatcher.onConnect(transport));
+	/**
+	 * Moves session handling off the reactors, for transports registered
+	 * from now on. Each transport gets a serial executor over the one given,
+	 * which received frames, closes and session timeouts all go through, so
+	 * each session still sees its events one at a time and in order. Slow
+	 * handlers then hold up only their own session rather than every
+	 * connection on the reactor.
+	 *
+	 * {@link VirtualThreads#newExecutor()} suits this. Null, the default,
+	 * handles everything inline on the reactor thread.
+	 */
+	public void setDispatchExecutor(Executor executor) {
+		dispatchExecutor = executor;
+	}
+
+	/**
+	 * @return Every reactor, the boss first.
+	 */
+	Reactor[] reactors() {
+		if(workers[0] == boss) return workers;
+		Reactor[] all = new Reactor[workers.length + 1];
+		all[0] = boss;
+		System.arraycopy(workers, 0, all, 1, workers.length);
+		return all;
+	}
+
+	/**
+	 * Starts queued connects while there are free slots.
+	 */
+	void startConnects() {
+		while(!connectQueue.isEmpty()) {
+			int n = pendingConnects.get();
+			if(n >= maxPendingConnects) return;
+			if(!pendingConnects.compareAndSet(n, n + 1)) continue;
+
+			PendingConnect connect = connectQueue.poll();
+			if(connect == null) {
+				pendingConnects.decrementAndGet();
+			} else {
+				connect.transport.reactor.execute(true, connect);
+			}
+		}
 	}
 
 	/**
 	 * Registers a socket for reading. Data will be sent to the passed transport session.
 	 */
 	protected <T extends SelectableChannel & ByteChannel> SocketTransport<T> register(final T channel, SocketAddress address, final TransportSession session) throws IOException {
-		return register(new SocketTransport<T>(channel, address), session);
+		return register(new SocketTransport<T>(nextWorker(), channel, address), session);
 	}
 
 	protected <T extends SelectableChannel & ByteChannel> SocketTransport<T> register(final SocketTransport<T> transport, final TransportSession session) throws IOException {
 		transport.channel.configureBlocking(false);
-		synchronized (tasks) {
-			priorityTasks.add(new Callable<Boolean>() {
-				public Boolean call() throws Exception {
-					transport.channel.register(selector, SelectionKey.OP_READ, new SocketData(transport, session));
-					return true;
+		transport.reactor.execute(true, new Task() {
+			public void run() throws IOException {
+				transport.reactor.register(transport, session);
+			}
+		});
+		return transport;
+	}
+
+	/**
+	 * Registers a datagram channel for reading. Every datagram received is
+	 * passed to the session on the boss reactor's thread.
+	 */
+	protected void registerDatagram(final DatagramChannel channel, final DatagramSession session) throws IOException {
+		channel.configureBlocking(false);
+		boss.execute(true, new Task() {
+			public void run() throws IOException {
+				channel.register(boss.selector, SelectionKey.OP_READ, new DatagramData(channel, session));
+			}
+		});
+	}
+
+	/**
+	 * Pool that read buffers and encoded messages are drawn from. Buffers
+	 * passed to {@link Transport#send} are released back to it once written.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public ManagerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Exposes the metrics through the platform MBean server, as
+	 * com.dysoft.chatter:type=Manager,name=&lt;name&gt;.
+	 */
+	public void registerMBean(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+				new ObjectName("com.dysoft.chatter:type=Manager,name=" + ObjectName.quote(name)));
+	}
+
+	/**
+	 * Picks the least loaded worker, starting the scan from a rotating index
+	 * so that ties are spread round-robin.
+	 */
+	synchronized Reactor nextWorker() {
+		int start = nextWorker;
+		nextWorker = (nextWorker + 1) % workers.length;
+
+		Reactor best = workers[start];
+		for(int i = 1; i < workers.length; i++) {
+			Reactor r = workers[(start + i) % workers.length];
+			if(r.connections.get() < best.connections.get()) {
+				best = r;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A selector and the thread that services it. Every channel registered
+	 * with a reactor is only ever read, written and dispatched from that
+	 * reactor's thread.
+	 */
+	class Reactor implements Runnable {
+		final Selector selector;
+		final Queue<Task> priorityTasks = new ConcurrentLinkedQueue<Task>();
+		final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+		final AtomicBoolean wakeupPending = new AtomicBoolean();
+		volatile long wokenAt = 0; //< When the pending wakeup was requested
+		int tasksRun = 0;
+		final AtomicInteger connections = new AtomicInteger();
+		final TimingWheel timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 512, new Runnable() {
+			public void run() {
+				wakeup(); // The select may be sleeping past the new deadline
+			}
+		});
+		TimingWheel.Timeout sweep = null;
+
+		Thread thread = null;
+
+		Reactor(String name) throws IOException {
+			selector = SelectorProvider.provider().openSelector();
+			thread = new Thread(this, name);
+			thread.start();
+			execute(true, new Task() {
+				public void run() throws IOException {
+					startSweep();
 				}
 			});
 		}
-		selector.wakeup();
-		return transport;
-	}
 
-	private void processTasks(final Queue<Callable<Boolean>> tasks) {
-		try {
-			synchronized (tasks) {
-				while(!tasks.isEmpty()) {
-					Callable<Boolean> start = tasks.peek();
-					do {
-						Callable<Boolean> task = tasks.remove();
-						if(task.call()) {
-							break;
-						} else {
-							tasks.add(task);
-						}
-					} while(!tasks.isEmpty() && start != tasks.peek());
-					if(start == tasks.peek()) break;
+		/**
+		 * (Re)arms the liveness sweep with the current heartbeat interval.
+		 */
+		void startSweep() {
+			if(sweep != null) {
+				sweep.cancel();
+				sweep = null;
+			}
+			if(heartbeatInterval > 0) {
+				sweep = schedule(sweepTask, heartbeatInterval, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		final Task sweepTask = new Task() {
+			public void run() throws IOException {
+				sweep();
+				startSweep();
+			}
+		};
+
+		/**
+		 * Checks every connection on this reactor in one pass, so the cost of
+		 * liveness tracking is one timer however many peers there are.
+		 */
+		void sweep() {
+			long now = System.nanoTime();
+			long interval = heartbeatInterval;
+			long timeout = heartbeatTimeout;
+			for(SelectionKey key : selector.keys()) {
+				if(!key.isValid() || !(key.attachment() instanceof SocketData)) continue;
+				SocketData data = (SocketData) key.attachment();
+				SocketTransport transport = data.transport;
+
+				if(now - transport.lastRead > timeout) {
+					LOG.info("No data from " + transport.address + " for "
+							+ TimeUnit.NANOSECONDS.toMillis(now - transport.lastRead) + "ms, closing");
+					fail(data);
+				} else if(now - transport.lastWrite >= interval) {
+					try {
+						transport.send(HEARTBEAT_FRAME.duplicate(), true);
+					} catch (IOException e) {
+						fail(data);
+					}
 				}
 			}
-		} catch (Exception e) {
-			throw new RuntimeException(e);
 		}
-	}
 
-	public void run() {
-		do {
+		/**
+		 * Closes a connection and tells its session.
+		 */
+		void fail(SocketData data) {
 			try {
-				processTasks(priorityTasks);
-				processTasks(tasks);
+				closed(data.transport);
+			} catch (IOException e) {
+				LOG.error("Failed to close " + data.transport.address, e);
+			}
+			data.session.onClose();
+		}
+
+		/**
+		 * Queues a task to run on this reactor's thread. Safe to call from any
+		 * thread; wakeups are coalesced so a burst of tasks costs one wakeup.
+		 */
+		void execute(boolean priority, Task task) {
+			if(priority) {
+				priorityTasks.add(task);
+			} else {
+				tasks.add(task);
+			}
+			wakeup();
+		}
+
+		/**
+		 * Runs a task on this reactor's thread after the given delay.
+		 */
+		TimingWheel.Timeout schedule(Task task, long delay, TimeUnit unit) {
+			return timer.schedule(task, delay, unit);
+		}
+
+		/**
+		 * @return Milliseconds to select for, or 0 to block until woken.
+		 */
+		private long selectTimeout() {
+			long delay = timer.nextDelay();
+			if(delay < 0) return 0;
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay + 999999));
+		}
+
+		void wakeup() {
+			if(Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+				wokenAt = System.nanoTime();
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Registers a transport for reading. Must be called on this reactor's thread.
+		 */
+		void register(SocketTransport transport, TransportSession session) throws IOException {
+			if(transport.executor != null) {
+				session = new OrderedSession(transport, session);
+			}
+			transport.decoder = new FrameDecoder(transport, session);
+			transport.channel.register(selector, SelectionKey.OP_READ,
+					new SocketData(transport, transport.decoder));
+			transport.registered = true;
+			transport.lastRead = transport.lastWrite = System.nanoTime();
+			connections.incrementAndGet();
+			transport.onRegistered();
+		}
 
-				selector.select();
+		/**
+		 * Closes a transport's channel. Must be called on this reactor's thread.
+		 */
+		void closed(SocketTransport transport) throws IOException {
+			SelectionKey key = transport.channel.keyFor(selector);
+			if(key != null) {
+				key.cancel();
+			}
+			transport.channel.close();
+			if(transport.registered) {
+				transport.registered = false;
+				connections.decrementAndGet();
+			}
+			transport.discardQueue();
+		}
 
-				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-				while(keys.hasNext()) {
-					SelectionKey key = keys.next();
-					keys.remove();
+		/**
+		 * Runs queued tasks, up to a limit so that a flood of tasks cannot
+		 * starve I/O.
+		 * @return true if tasks are still pending.
+		 */
+		private boolean processTasks(final Queue<Task> tasks) {
+			for(int i = 0; i < MAX_TASKS_PER_LOOP; i++) {
+				Task task = tasks.poll();
+				if(task == null) return false;
+				tasksRun++;
+				try {
+					task.run();
+				} catch (Exception e) {
+					LOG.error("Task failed", e);
+				}
+			}
+			return !tasks.isEmpty();
+		}
 
-					if(!key.isValid()) continue;
+		public void run() {
+			do {
+				try {
+					// Clear before draining, so any task queued from here on
+					// wakes the select below.
+					long start = System.nanoTime();
+					long woken = wokenAt;
+					if(woken != 0) {
+						wokenAt = 0;
+						metrics.taskWait.record(start - woken);
+					}
+					wakeupPending.set(false);
+					tasksRun = 0;
+					boolean pending = processTasks(priorityTasks);
+					pending |= processTasks(tasks);
+					metrics.tasksPerLoop.record(tasksRun);
+					timer.expire();
+					long timeout = selectTimeout();
+					long busy = System.nanoTime() - start;
 
-					if(key.isAcceptable()) {
-						ServerSocketChannel server = (ServerSocketChannel)key.channel();
-						Dispatcher dispatcher = (Dispatcher) key.attachment();
+					if(pending || !priorityTasks.isEmpty()) {
+						selector.selectNow();
+					} else {
+						selector.select(timeout);
+					}
+					start = System.nanoTime();
 
-						final SocketChannel channel = server.accept();
-						final SocketTransport transport = new SocketTransport(channel, channel.socket().getRemoteSocketAddress());
-						channel.configureBlocking(false);
-						channel.register(selector, SelectionKey.OP_READ, new SocketData(
-								transport, dispatcher.accept(transport)));
-					} else if(key.isReadable()) {
-						ByteChannel channel = (ByteChannel) key.channel();
-						TransportSession transport = ((SocketData) key.attachment()).session;
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
 
-						ByteBuffer buffer = bufferPool.pop();
-						buffer.clear();
+						if(!key.isValid()) continue;
 						try {
-							int numRead = channel.read(buffer);
-							if(numRead < 0) {
-								key.channel().close();
-								key.cancel();
-								transport.onClose();
-							} else {
-								buffer.flip();
-								transport.onReceive(buffer);
-							}
-						} catch (IOException e) {
-							key.cancel();
-							channel.close();
-							transport.onClose();
-						} finally {
-							bufferPool.push(buffer);
+							process(key);
+						} catch (RuntimeException e) {
+							failed(key, e);
 						}
-					} else if(key.isWritable()) {
-						SocketTransport transport = ((SocketData) key.attachment()).transport;
-						transport.processWrites(key);
 					}
+					metrics.loopTime.record(busy + System.nanoTime() - start);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (RuntimeException e) {
+					LOG.error("Reactor loop failed", e);
+				}
+			} while(thread != null);
+		}
+
+		void process(SelectionKey key) throws IOException {
+			if(key.isAcceptable()) {
+				accept(key);
+				return;
+			}
+			if(key.isConnectable()) {
+				((PendingConnect) key.attachment()).finish();
+				return;
+			}
+			if(key.isReadable()) {
+				if(key.attachment() instanceof DatagramData) {
+					receive(key);
+					return;
+				}
+				read(key);
+			}
+			if(key.isValid() && key.isWritable()) {
+				write(key);
+			}
+		}
+
+		/**
+		 * Closes the connection whose handler threw, so that one bad session
+		 * cannot take the reactor and every other connection on it down.
+		 * Listening and datagram channels are left open, as the fault lies
+		 * with what they delivered.
+		 */
+		void failed(SelectionKey key, RuntimeException e) {
+			Object attachment = key.attachment();
+			LOG.error("Handler failed on " + key.channel(), e);
+			if(attachment instanceof SocketData) {
+				try {
+					fail((SocketData) attachment);
+				} catch (RuntimeException e1) {
+					LOG.error("Session failed to close", e1);
+				}
+			}
+		}
+
+		void read(SelectionKey key) throws IOException {
+			ByteChannel channel = (ByteChannel) key.channel();
+			SocketData data = (SocketData) key.attachment();
+			FrameDecoder transport = data.session;
+
+			ByteBuffer buffer = bufferPool.acquire(READ_BUFFER_SIZE);
+			try {
+				int numRead = channel.read(buffer);
+				if(numRead < 0) {
+					closed(data.transport);
+					transport.onClose();
+				} else {
+					data.transport.lastRead = System.nanoTime();
+					data.transport.bytesRead += numRead;
+					metrics.bytesIn.add(numRead);
+					long frames = data.session.frames;
+					buffer.flip();
+					transport.onReceive(buffer);
+					metrics.messagesIn.add(data.session.frames - frames);
 				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				closed(data.transport);
+				transport.onClose();
+			} finally {
+				bufferPool.release(buffer);
 			}
-		} while(thread != null);
+		}
+
+		/**
+		 * Drains waiting datagrams, up to a limit per wakeup.
+		 */
+		void receive(SelectionKey key) {
+			DatagramData data = (DatagramData) key.attachment();
+			for(int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+				ByteBuffer buffer = bufferPool.acquire(MAX_DATAGRAM_SIZE);
+				try {
+					SocketAddress source = data.channel.receive(buffer);
+					if(source == null) break;
+					buffer.flip();
+					data.session.onReceive(buffer, source);
+				} catch (IOException e) {
+					LOG.error("Datagram receive failed", e);
+					break;
+				} finally {
+					bufferPool.release(buffer);
+				}
+			}
+		}
+
+		void write(SelectionKey key) throws IOException {
+			SocketData data = (SocketData) key.attachment();
+			try {
+				data.transport.processWrites(key);
+			} catch (IOException e) {
+				closed(data.transport);
+				data.session.onClose();
+			}
+		}
+
+		/**
+		 * Accepts a connection and hands it to a worker, which registers it
+		 * and calls the dispatcher on its own thread.
+		 */
+		void accept(SelectionKey key) throws IOException {
+			ServerSocketChannel server = (ServerSocketChannel)key.channel();
+			final Dispatcher dispatcher = (Dispatcher) key.attachment();
+
+			final SocketChannel channel = server.accept();
+			if(channel == null) return;
+			channel.configureBlocking(false);
+
+			final Reactor worker = nextWorker();
+			final SocketTransport transport = new SocketTransport(worker, channel, channel.socket().getRemoteSocketAddress());
+			worker.execute(true, new Task() {
+				public void run() throws IOException {
+					worker.register(transport, dispatcher.accept(transport));
+				}
+			});
+		}
+	}
+
+	interface Task {
+		void run() throws IOException;
+	}
+
+	/**
+	 * A connect attempt. Runs on the transport's reactor from the time it
+	 * is started until it completes, fails or times out.
+	 */
+	class PendingConnect implements Task {
+		final SocketTransport<SocketChannel> transport;
+		final Dispatcher dispatcher;
+		TimingWheel.Timeout timeout = null;
+		boolean done = false;
+
+		PendingConnect(SocketTransport<SocketChannel> transport, Dispatcher dispatcher) {
+			this.transport = transport;
+			this.dispatcher = dispatcher;
+		}
+
+		/**
+		 * Starts the connect.
+		 */
+		public void run() throws IOException {
+			try {
+				if(transport.channel.connect(transport.address)) {
+					connected();
+				} else {
+					transport.channel.register(transport.reactor.selector, SelectionKey.OP_CONNECT, this);
+					timeout = transport.reactor.schedule(new Task() {
+						public void run() throws IOException {
+							if(!done) {
+								failed(new SocketTimeoutException("Timed out connecting to " + transport.address));
+							}
+						}
+					}, connectTimeout, TimeUnit.NANOSECONDS);
+				}
+			} catch (IOException e) {
+				failed(e);
+			} catch (RuntimeException e) {
+				failed(new IOException("Failed to connect to " + transport.address, e));
+			}
+		}
+
+		void finish() {
+			if(done) return;
+			try {
+				if(transport.channel.finishConnect()) {
+					connected();
+				}
+			} catch (IOException e) {
+				failed(e);
+			} catch (RuntimeException e) {
+				failed(new IOException("Failed to connect to " + transport.address, e));
+			}
+		}
+
+		/**
+		 * Registers the channel before the dispatcher hears of it, so that
+		 * a connect it was told of is never reported failed. If the session
+		 * cannot then be attached, it is closed instead.
+		 */
+		void connected() throws IOException {
+			transport.channel.register(transport.reactor.selector, 0, null);
+			if(!complete()) return;
+			TransportSession session = dispatcher.onConnect(transport);
+			boolean attached = false;
+			try {
+				transport.reactor.register(transport, session);
+				attached = true;
+			} finally {
+				if(!attached) {
+					session.onClose();
+				}
+			}
+		}
+
+		/**
+		 * Closes the channel, and reports the failure unless the connect
+		 * had already completed.
+		 */
+		void failed(IOException e) {
+			boolean pending = complete();
+			try {
+				transport.reactor.closed(transport);
+			} catch (IOException e1) {
+				LOG.error("Failed to close " + transport.address, e1);
+			}
+			if(pending) {
+				dispatcher.onConnectFailed(transport, e);
+			} else {
+				LOG.error("Failed after connecting to " + transport.address, e);
+			}
+		}
+
+		/**
+		 * Frees the connect's slot. Only the first call has any effect.
+		 * @return false if the connect had already completed.
+		 */
+		boolean complete() {
+			if(done) return false;
+			done = true;
+			if(timeout != null) {
+				timeout.cancel();
+			}
+			pendingConnects.decrementAndGet();
+			startConnects();
+			return true;
+		}
+	}
+
+	public enum OverflowPolicy {
+		/** Discard queued data that has not started to be written */
+		DROP_OLDEST,
+		/** Discard the data being sent */
+		DROP_NEWEST,
+		/** Close the transport */
+		CLOSE,
+	}
+
+	/**
+	 * Receives datagrams. The buffer is only valid for the duration of the call.
+	 */
+	public interface DatagramSession {
+		void onReceive(ByteBuffer data, SocketAddress source);
 	}
 
 	public interface Dispatcher {
 		TransportSession accept(Transport channel);
 		TransportSession onConnect(Transport channel);
+		void onConnectFailed(Transport channel, IOException cause);
 	}
 
 	class SocketTransport<T extends SelectableChannel & ByteChannel> implements Transport {
+		final Reactor reactor;
 		final T channel;
 		final SocketAddress address;
 		final Queue<ByteBuffer> sendQueue = new ArrayDeque<ByteBuffer>();
+		final AtomicBoolean flushScheduled = new AtomicBoolean();
+		volatile boolean registered = false;
+		volatile long lastRead; //< Times of the last read and send, for heartbeats
+		volatile long lastWrite;
+		final SerialExecutor executor; //< Session events, or null to run them inline
+		FrameDecoder decoder = null;
+		long bytesRead = 0;
+		long bytesWritten = 0;
 
-		SocketTransport(T channel, SocketAddress address) {
+		ByteBuffer[] gather = null;
+		int[] gatherPositions = null; //< Positions before each gathering write
+		int lingerBytes = 0;
+		long lingerNanos = 0;
+		boolean corked = false;
+		int corkedBytes = 0;
+		TimingWheel.Timeout lingerTimeout = null; //< Armed while corked
+
+		long writeCalls = 0;
+		long buffersWritten = 0;
+
+		final int lowWatermark = Manager.this.lowWatermark;
+		final int highWatermark = Manager.this.highWatermark;
+		final int sendQueueLimit = Manager.this.sendQueueLimit;
+		final OverflowPolicy overflowPolicy = Manager.this.overflowPolicy;
+		int queuedBytes = 0;
+		boolean headStarted = false; //< Head of queue partly written
+		boolean closed = false; //< Set once the queue has been discarded; nothing more is queued
+		boolean writable = true;
+		long droppedBuffers = 0;
+		WritabilityListener writabilityListener = null;
+
+		/** Owners of queued shared buffer views */
+		final Map<ByteBuffer, SharedBuffer> sharedOwners = new IdentityHashMap<ByteBuffer, SharedBuffer>();
+
+		/**
+		 * Sets write interest. Reused for every send; at most one is queued
+		 * at a time.
+		 */
+		final Task flushTask = new Task() {
+			public void run() throws IOException {
+				flushScheduled.set(false);
+				if(!registered) return; // onRegistered() re-arms it
+				SelectionKey key = channel.keyFor(reactor.selector);
+				if(key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		};
+
+		/**
+		 * Flushes corked data once the linger window expires.
+		 */
+		final Task lingerTask = new Task() {
+			public void run() throws IOException {
+				synchronized (SocketTransport.this) {
+					lingerTimeout = null;
+					if(!corked) return;
+					uncork();
+				}
+			}
+		};
+
+		SocketTransport(Reactor reactor, T channel, SocketAddress address) {
+			this.reactor = reactor;
 			this.channel = channel;
 			this.address = address;
+			Executor dispatch = dispatchExecutor;
+			executor = dispatch != null ? new SerialExecutor(dispatch) : null;
+		}
+
+		public void send(ByteBuffer data) throws IOException {
+			send(data, true);
 		}
 
 		/**
-		 * Registers write interest with the selector.
+		 * Writes directly from the calling thread if nothing is queued ahead
+		 * of the data, otherwise (or if the socket is full) queues the rest and
+		 * registers write interest with the selector.
+		 *
+		 * If flush is false and a linger window is set, the data is corked
+		 * until the window expires or enough bytes are queued, so that it can
+		 * go out in a single gathering write with whatever follows.
 		 * @param data  Data to write
+		 * @param flush false to allow the data to linger
 		 * @throws IOException
 		 */
-		public synchronized void send(ByteBuffer data) throws IOException {
+		public synchronized void send(ByteBuffer data, boolean flush) throws IOException {
+			if(closed) {
+				release(data);
+				throw new ClosedChannelException();
+			}
+			lastWrite = System.nanoTime();
+			if(!flush && lingerNanos > 0) {
+				int length = data.remaining();
+				if(!enqueue(data)) return;
+				corkedBytes += length;
+				if(corkedBytes >= lingerBytes) {
+					uncork();
+				} else if(!corked) {
+					corked = true;
+					lingerTimeout = reactor.schedule(lingerTask, lingerNanos, TimeUnit.NANOSECONDS);
+				}
+				return;
+			}
+
+			if(sendQueue.isEmpty() && registered) {
+				writeCalls++;
+				int written = channel.write(data);
+				if(written > 0) {
+					headStarted = true;
+					wrote(written);
+				}
+				if(!data.hasRemaining()) {
+					headStarted = false;
+					buffersWritten++;
+					metrics.messagesOut.increment();
+					release(data);
+					return;
+				}
+			}
+
+			if(enqueue(data)) {
+				uncork();
+			}
+		}
+
+		/**
+		 * Sends a view of a shared buffer, holding a reference to it until
+		 * the view has been written.
+		 */
+		public synchronized void send(SharedBuffer data) throws IOException {
+			ByteBuffer view = data.view();
+			sharedOwners.put(view, data.retain());
+			try {
+				send(view, true);
+			} catch (IOException e) {
+				release(view); // No-op if already released
+				throw e;
+			}
+		}
+
+		/**
+		 * Releases a buffer that has been written or dropped, to its shared
+		 * owner or the pool.
+		 */
+		void release(ByteBuffer buf) {
+			if(buf.isReadOnly()) {
+				SharedBuffer owner = sharedOwners.remove(buf);
+				if(owner != null) {
+					owner.release();
+				}
+			} else {
+				bufferPool.release(buf);
+			}
+		}
+
+		/**
+		 * Releases everything still queued, and refuses anything sent later.
+		 * Called once the channel is closed.
+		 */
+		synchronized void discardQueue() {
+			closed = true;
+			clearCork();
+			while(!sendQueue.isEmpty()) {
+				release(sendQueue.remove());
+			}
+			for(SharedBuffer owner : sharedOwners.values()) {
+				owner.release();
+			}
+			sharedOwners.clear();
+			metrics.queuedBytes.add(-queuedBytes);
+			queuedBytes = 0;
+		}
+
+		void wrote(long bytes) {
+			bytesWritten += bytes;
+			metrics.bytesOut.add(bytes);
+		}
+
+		/**
+		 * Adds data to the send queue, applying the overflow policy if it
+		 * would take the queue past its hard limit.
+		 * @return false if the data was not queued.
+		 */
+		boolean enqueue(ByteBuffer data) throws IOException {
+			int length = data.remaining();
+			boolean started = headStarted && sendQueue.isEmpty(); //< Remainder of a partial write
+			if(queuedBytes + length > sendQueueLimit && !started) {
+				switch(overflowPolicy) {
+					case DROP_NEWEST:
+						droppedBuffers++;
+						release(data);
+						return false;
+
+					case DROP_OLDEST:
+						Iterator<ByteBuffer> it = sendQueue.iterator();
+						if(headStarted && it.hasNext()) {
+							it.next(); // Can't drop half a frame
+						}
+						while(queuedBytes + length > sendQueueLimit && it.hasNext()) {
+							ByteBuffer old = it.next();
+							it.remove();
+							queuedBytes -= old.remaining();
+							metrics.queuedBytes.add(-old.remaining());
+							droppedBuffers++;
+							release(old);
+						}
+						if(queuedBytes + length > sendQueueLimit) {
+							droppedBuffers++;
+							release(data);
+							return false;
+						}
+						break;
+
+					case CLOSE:
+						release(data);
+						close();
+						throw new IOException("Send queue to " + address + " overflowed " + sendQueueLimit + " bytes");
+				}
+			}
+
 			sendQueue.add(data);
-			synchronized (tasks) {
-				tasks.add(new Callable<Boolean>() {
-					public Boolean call() throws Exception {
-						if(!channel.isRegistered()) return false;
-						channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
-						return true;
-					}
-				});
+			queuedBytes += length;
+			metrics.queuedBytes.add(length);
+			if(writable && queuedBytes >= highWatermark) {
+				setWritable(false);
+			}
+			return true;
+		}
+
+		void setWritable(boolean writable) {
+			this.writable = writable;
+			if(writabilityListener != null) {
+				writabilityListener.onWritabilityChanged(this, writable);
+			}
+		}
+
+		public synchronized boolean isWritable() {
+			return writable;
+		}
+
+		public synchronized int getQueuedBytes() {
+			return queuedBytes;
+		}
+
+		public synchronized void setWritabilityListener(WritabilityListener listener) {
+			writabilityListener = listener;
+		}
+
+		/**
+		 * @return Number of buffers discarded by the overflow policy.
+		 */
+		public synchronized long getDroppedBuffers() {
+			return droppedBuffers;
+		}
+
+		/**
+		 * Sets the window that non-flushed sends are held for. The window is
+		 * timed by the reactor's timing wheel, whose tick is a millisecond,
+		 * so it ends no earlier than asked and up to a tick later.
+		 * @param bytes  Flush as soon as this many bytes are corked
+		 * @param millis Flush after this long regardless; 0 disables lingering
+		 */
+		public synchronized void setLinger(int bytes, long millis) {
+			lingerBytes = bytes;
+			lingerNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		/**
+		 * @return Number of write system calls made.
+		 */
+		public synchronized long getWriteCalls() {
+			return writeCalls;
+		}
+
+		/**
+		 * @return Number of buffers completely written. Divided by
+		 * {@link #getWriteCalls()} this gives the messages coalesced per call.
+		 */
+		public synchronized long getBuffersWritten() {
+			return buffersWritten;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public synchronized long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		/**
+		 * @return Number of frames received.
+		 */
+		public long getMessagesIn() {
+			return decoder != null ? decoder.frames : 0;
+		}
+
+		/**
+		 * @return Number of buffers sent, normally one per message.
+		 */
+		public synchronized long getMessagesOut() {
+			return buffersWritten;
+		}
+
+		void uncork() {
+			clearCork();
+			if(flushScheduled.compareAndSet(false, true)) {
+				reactor.execute(false, flushTask);
+			}
+		}
+
+		/**
+		 * Ends the linger window, so a timeout left from it cannot cut short
+		 * the next one.
+		 */
+		void clearCork() {
+			corked = false;
+			corkedBytes = 0;
+			if(lingerTimeout != null) {
+				lingerTimeout.cancel();
+				lingerTimeout = null;
 			}
-			selector.wakeup();
 		}
 
 		public void close() throws IOException {
-			synchronized (tasks) {
-				priorityTasks.add(new Callable<Boolean>() {
-					public Boolean call() throws Exception {
-						if(channel.isRegistered()) {
-							channel.keyFor(selector).interestOps(0);
-						}
-						channel.close();
-						return true;
-					}
-				});
+			reactor.execute(true, new Task() {
+				public void run() throws IOException {
+					reactor.closed(SocketTransport.this);
+				}
+			});
+		}
+
+		/**
+		 * Called once the channel is registered, to set write interest for
+		 * anything sent before registration.
+		 */
+		synchronized void onRegistered() {
+			if(!sendQueue.isEmpty() && !corked) {
+				SelectionKey key = channel.keyFor(reactor.selector);
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
 			}
-			selector.wakeup();
 		}
 
 		/**
 		 * Works down the send queue, sending data until there is either no more, or
-		 * the socket is full.
+		 * the socket is full. Channels that support it are written with a single
+		 * gathering write per batch of queued buffers.
 		 * @param key
 		 * @throws IOException
 		 */
 		protected synchronized void processWrites(SelectionKey key) throws IOException {
-			while(!sendQueue.isEmpty()) {
-				ByteBuffer buf = sendQueue.peek();
-				LOG.debug("Writing " + buf);
-				channel.write(buf);
-				if(buf.hasRemaining()) {
-					break; // Socket full
-				} else {
-					sendQueue.remove();
+			clearCork();
+			if(channel instanceof GatheringByteChannel) {
+				if(gather == null) {
+					gather = new ByteBuffer[MAX_GATHER];
+					gatherPositions = new int[MAX_GATHER];
+				}
+				while(!sendQueue.isEmpty()) {
+					int n = 0;
+					for(ByteBuffer buf : sendQueue) {
+						gatherPositions[n] = buf.position();
+						gather[n++] = buf;
+						if(n == MAX_GATHER) break;
+					}
+
+					writeCalls++;
+					long written = ((GatheringByteChannel) channel).write(gather, 0, n);
+					queuedBytes -= written;
+					metrics.queuedBytes.add(-written);
+					wrote(written);
+
+					boolean full = false;
+					for(int i = 0; i < n; i++) {
+						if(gather[i].hasRemaining()) {
+							if(!full) {
+								// Still set if this was the head before the write and already started
+								headStarted |= gather[i].position() != gatherPositions[i];
+							}
+							full = true; // Socket full
+						} else if(!full) {
+							buffersWritten++;
+							metrics.messagesOut.increment();
+							release(sendQueue.remove());
+							headStarted = false;
+						}
+						gather[i] = null;
+					}
+					if(full) break;
+				}
+			} else {
+				while(!sendQueue.isEmpty()) {
+					ByteBuffer buf = sendQueue.peek();
+					writeCalls++;
+					int written = channel.write(buf);
+					queuedBytes -= written;
+					metrics.queuedBytes.add(-written);
+					wrote(written);
+					if(buf.hasRemaining()) {
+						headStarted |= written > 0;
+						break; // Socket full
+					} else {
+						headStarted = false;
+						buffersWritten++;
+						metrics.messagesOut.increment();
+						release(sendQueue.remove());
+					}
 				}
 			}
 			if(sendQueue.isEmpty()) {
-				key.interestOps(SelectionKey.OP_READ);
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+			if(!writable && queuedBytes <= lowWatermark) {
+				setWritable(true);
 			}
 		}
 
 		public SocketAddress getSocketAddress() {
 			return address;
 		}
+
+		public TimingWheel getTimer() {
+			return reactor.timer;
+		}
+
+		public OverflowPolicy getOverflowPolicy() {
+			return overflowPolicy;
+		}
+
+		public void execute(Runnable task) {
+			if(executor != null) {
+				executor.execute(task);
+			} else {
+				task.run();
+			}
+		}
+	}
+
+	static class DatagramData {
+		public final DatagramChannel channel;
+		public final DatagramSession session;
+
+		DatagramData(DatagramChannel channel, DatagramSession session) {
+			this.channel = channel;
+			this.session = session;
+		}
+	}
+
+	/**
+	 * Hands frames and the close to the session on its transport's serial
+	 * executor. Frames are copied to the heap first, as the read buffer they
+	 * arrive in is reused as soon as the read returns.
+	 */
+	static class OrderedSession implements TransportSession {
+		final SocketTransport transport;
+		final TransportSession session;
+
+		OrderedSession(SocketTransport transport, TransportSession session) {
+			this.transport = transport;
+			this.session = session;
+		}
+
+		public void onReceive(ByteBuffer data) {
+			final ByteBuffer frame = ByteBuffer.allocate(data.remaining());
+			frame.put(data);
+			frame.flip();
+			transport.execute(new Runnable() {
+				public void run() {
+					session.onReceive(frame);
+				}
+			});
+		}
+
+		public void onClose() {
+			transport.execute(new Runnable() {
+				public void run() {
+					session.onClose();
+				}
+			});
+		}
 	}
 
 	static class SocketData {
 		public final SocketTransport transport;
-		public final TransportSession session;
+		public final FrameDecoder session;
 
-		SocketData(SocketTransport transport, TransportSession session) {
+		SocketData(SocketTransport transport, FrameDecoder session) {
 			this.transport = transport;
 			this.session = session;
 		}
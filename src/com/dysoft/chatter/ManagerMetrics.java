@@ -0,0 +1,248 @@
+package com.dysoft.chatter;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for a manager, its transports and the
+ * sessions and parties running on it. Updates are cheap enough for the
+ * I/O paths; reads are pulled, through {@link #getSnapshot()} or JMX.
+ */
+public class ManagerMetrics implements ManagerMetricsMBean {
+	final Manager manager;
+
+	final Histogram loopTime = new Histogram();		//< Busy time per reactor loop, excluding select
+	final Histogram tasksPerLoop = new Histogram();
+	final Histogram taskWait = new Histogram();		//< From a reactor being woken to running its tasks
+
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder messagesOut = new LongAdder();
+	final LongAdder queuedBytes = new LongAdder();
+
+	final AtomicLongArray decodeFailures = new AtomicLongArray(257); //< By type tag, then unreadable headers
+	final ConcurrentMap<Class<?>, Histogram> stateResidency = new ConcurrentHashMap<Class<?>, Histogram>();
+	final Histogram mergeTime = new Histogram();		//< Merges confirmed, from request to confirmation
+	final LongAdder mergeTimeouts = new LongAdder();	//< Requests accepted but never confirmed
+
+	final LongAdder compressedBytesIn = new LongAdder();	//< Before compression
+	final LongAdder compressedBytesOut = new LongAdder();	//< After compression
+	final LongAdder compressionSkipped = new LongAdder();	//< Frames that would not shrink
+	final Histogram compressTime = new Histogram();
+	final Histogram decompressTime = new Histogram();
+
+	ManagerMetrics(Manager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @param tag  Message type tag, or -1 if the header could not be read
+	 */
+	void decodeFailed(int tag) {
+		decodeFailures.incrementAndGet(tag < 0 ? 256 : tag & 0xff);
+	}
+
+	/**
+	 * Records the time a state machine spent in a state.
+	 */
+	public void stateExited(Class<?> state, long nanos) {
+		Histogram h = stateResidency.get(state);
+		if(h == null) {
+			Histogram created = new Histogram();
+			h = stateResidency.putIfAbsent(state, created);
+			if(h == null) h = created;
+		}
+		h.record(nanos);
+	}
+
+	/**
+	 * Records the time taken by a party merge, from request to confirmation.
+	 */
+	public void mergeCompleted(long nanos) {
+		mergeTime.record(nanos);
+	}
+
+	/**
+	 * Counts a merge request that was accepted but timed out unconfirmed.
+	 */
+	public void mergeTimedOut() {
+		mergeTimeouts.increment();
+	}
+
+	void compressed(int length, int compressedLength, long nanos) {
+		compressedBytesIn.add(length);
+		compressedBytesOut.add(compressedLength);
+		compressTime.record(nanos);
+	}
+
+	void compressionSkipped(long nanos) {
+		compressionSkipped.increment();
+		compressTime.record(nanos);
+	}
+
+	void decompressed(long nanos) {
+		decompressTime.record(nanos);
+	}
+
+	public long getLoopIterations() {
+		return loopTime.getCount();
+	}
+
+	public long getLoopTimeMean() {
+		return loopTime.getMean();
+	}
+
+	public long getLoopTimeP99() {
+		return loopTime.getPercentile(0.99);
+	}
+
+	public long getLoopTimeMax() {
+		return loopTime.getMax();
+	}
+
+	public int getTaskQueueDepth() {
+		int depth = 0;
+		for(Manager.Reactor reactor : manager.reactors()) {
+			depth += reactor.priorityTasks.size() + reactor.tasks.size();
+		}
+		return depth;
+	}
+
+	public long getTaskWaitMean() {
+		return taskWait.getMean();
+	}
+
+	public long getTaskWaitP99() {
+		return taskWait.getPercentile(0.99);
+	}
+
+	public int getConnections() {
+		int n = 0;
+		for(Manager.Reactor reactor : manager.reactors()) {
+			n += reactor.connections.get();
+		}
+		return n;
+	}
+
+	public int getPendingConnects() {
+		return manager.pendingConnects.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes.sum();
+	}
+
+	public long getDecodeFailures() {
+		long n = 0;
+		for(int i = 0; i < decodeFailures.length(); i++) {
+			n += decodeFailures.get(i);
+		}
+		return n;
+	}
+
+	public long getMergeCount() {
+		return mergeTime.getCount();
+	}
+
+	public long getMergeTimeP99() {
+		return mergeTime.getPercentile(0.99);
+	}
+
+	public long getMergeTimeouts() {
+		return mergeTimeouts.sum();
+	}
+
+	public long getCompressedFrames() {
+		return compressTime.getCount() - compressionSkipped.sum();
+	}
+
+	/**
+	 * @return Compressed size as a percentage of the original, over every
+	 * frame compressed; 100 if none have been.
+	 */
+	public long getCompressionRatio() {
+		long in = compressedBytesIn.sum();
+		return in == 0 ? 100 : compressedBytesOut.sum() * 100 / in;
+	}
+
+	public long getCompressTimeP99() {
+		return compressTime.getPercentile(0.99);
+	}
+
+	public long getDecompressTimeP99() {
+		return decompressTime.getPercentile(0.99);
+	}
+
+	public long getBufferPoolOutstandingBytes() {
+		return manager.bufferPool.getOutstandingBytes();
+	}
+
+	public Map<String, Long> getSnapshot() {
+		Map<String, Long> s = new TreeMap<String, Long>();
+		put(s, "loop.time", loopTime);
+		put(s, "loop.tasks", tasksPerLoop);
+		put(s, "task.wait", taskWait);
+		s.put("task.queue.depth", (long) getTaskQueueDepth());
+		s.put("connections", (long) getConnections());
+		s.put("connects.pending", (long) getPendingConnects());
+		s.put("bytes.in", getBytesIn());
+		s.put("bytes.out", getBytesOut());
+		s.put("messages.in", getMessagesIn());
+		s.put("messages.out", getMessagesOut());
+		s.put("queued.bytes", getQueuedBytes());
+		s.put("bufferpool.outstanding.bytes", getBufferPoolOutstandingBytes());
+		s.put("bufferpool.hits", manager.bufferPool.getHits());
+		s.put("bufferpool.misses", manager.bufferPool.getMisses());
+
+		for(int i = 0; i < 256; i++) {
+			long n = decodeFailures.get(i);
+			if(n == 0) continue;
+			Message.Type type = Message.Type.lookup((byte) i);
+			s.put("decode.failures." + (type != null ? type.name() : "tag" + i), n);
+		}
+		s.put("decode.failures.header", decodeFailures.get(256));
+
+		for(Map.Entry<Class<?>, Histogram> e : stateResidency.entrySet()) {
+			put(s, "state." + e.getKey().getSimpleName(), e.getValue());
+		}
+		put(s, "party.merge", mergeTime);
+		s.put("party.merge.timeouts", getMergeTimeouts());
+
+		s.put("compression.bytes.in", compressedBytesIn.sum());
+		s.put("compression.bytes.out", compressedBytesOut.sum());
+		s.put("compression.ratio", getCompressionRatio());
+		s.put("compression.skipped", compressionSkipped.sum());
+		put(s, "compression.time", compressTime);
+		put(s, "decompression.time", decompressTime);
+		return s;
+	}
+
+	static void put(Map<String, Long> s, String name, Histogram h) {
+		s.put(name + ".count", h.getCount());
+		s.put(name + ".mean", h.getMean());
+		s.put(name + ".p50", h.getPercentile(0.5));
+		s.put(name + ".p99", h.getPercentile(0.99));
+		s.put(name + ".max", h.getMax());
+	}
+}
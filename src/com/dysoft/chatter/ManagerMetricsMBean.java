@@ -0,0 +1,43 @@
+package com.dysoft.chatter;
+
+import java.util.Map;
+
+/**
+ * JMX view of a manager's metrics. Times are in nanoseconds.
+ */
+public interface ManagerMetricsMBean {
+	long getLoopIterations();
+	long getLoopTimeMean();
+	long getLoopTimeP99();
+	long getLoopTimeMax();
+
+	int getTaskQueueDepth();
+	long getTaskWaitMean();
+	long getTaskWaitP99();
+
+	int getConnections();
+	int getPendingConnects();
+	long getBytesIn();
+	long getBytesOut();
+	long getMessagesIn();
+	long getMessagesOut();
+	long getQueuedBytes();
+
+	long getDecodeFailures();
+	long getMergeCount();
+	long getMergeTimeP99();
+	long getMergeTimeouts();
+
+	long getCompressedFrames();
+	long getCompressionRatio();	//< Percent
+	long getCompressTimeP99();
+	long getDecompressTimeP99();
+
+	long getBufferPoolOutstandingBytes();
+
+	/**
+	 * @return Every metric by name, including per message type and per
+	 * state breakdowns.
+	 */
+	Map<String, Long> getSnapshot();
+}
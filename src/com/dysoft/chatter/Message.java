@@ -1,16 +1,18 @@
 package com.dysoft.chatter;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * @author Sean Micklethwaite
  *         22-Aug-2010
  */
 public class Message {
-	public final static byte VERSION = (byte)1;
+	public final static byte VERSION = (byte)1;		//< Oldest version, spoken until negotiated up
+	public final static byte MAX_VERSION = (byte)2;
+	final static int V2_SLACK = 16; //< Version 2 encodings are at most this much longer than version 1
+	public final static byte COMPRESSED = (byte)0x80;	//< Set in the version byte of a deflated message
 	public final static Charset CHARSET = Charset.forName("UTF8");
 
 
@@ -19,6 +21,17 @@ public class Message {
 		Message decode(ByteBuffer buf, Manager manager) throws CodecException;
 	}
 
+	/**
+	 * Codec for a type whose version 2 encoding differs from version 1.
+	 * Types with plain codecs are encoded the same in both.
+	 */
+	public interface ContextCodec extends Codec {
+		/**
+		 * Decodes a version 2 message received on the context's connection.
+		 */
+		Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException;
+	}
+
 	public interface Handler {
 		void handle(Message msg);
 	}
@@ -31,10 +44,10 @@ public class Message {
 		APPLICATION_DATA_MESSAGE(4),
 		;
 
-		final static Map<Byte, Type> typeMap = new HashMap<Byte, Type>();
+		final static Type[] byTag = new Type[256];
 		static {
 			for(Type t : values()) {
-				typeMap.put(t.tag, t);
+				byTag[t.tag & 0xff] = t;
 			}
 		}
 
@@ -45,7 +58,7 @@ public class Message {
 		}
 
 		public static Type lookup(byte tag) {
-			return typeMap.get(tag);
+			return byTag[tag & 0xff];
 		}
 	}
 	
@@ -56,40 +69,170 @@ public class Message {
 		this.type = type;
 	}
 
+	public Type getType() {
+		return type;
+	}
+
 	public int getEncodedLength() {
 		return 2;
 	}
 
+	/**
+	 * Urgent messages are written immediately. Others may linger on the
+	 * transport to be batched with following messages.
+	 */
+	public boolean isUrgent() {
+		return true;
+	}
+
 	void encode(ByteBuffer buf) {
 		buf.put(VERSION);
 		buf.put(type.tag);
 	}
 
+	/**
+	 * Encodes the message in the context's wire format version. Types with
+	 * the same body in every version are encoded as version 1 and stamped
+	 * with the version; others override this.
+	 */
+	void encode(ByteBuffer buf, WireContext context) {
+		int start = buf.position();
+		encode(buf);
+		buf.put(start, (byte)context.version);
+	}
+
+	/**
+	 * Encodes the message as a length-prefixed frame at the buffer's
+	 * position. The header is back-filled from the bytes actually written.
+	 */
+	public void encodeFrame(ByteBuffer buf) {
+		int start = buf.position();
+		buf.position(start + FrameDecoder.HEADER_LENGTH);
+		encode(buf);
+		buf.putInt(start, buf.position() - start - FrameDecoder.HEADER_LENGTH);
+	}
+
+	/**
+	 * Encodes the message as a frame into a buffer drawn from the pool.
+	 * @return The flipped buffer, ready to send.
+	 */
+	public ByteBuffer encodeFrame(BufferPool pool) {
+		ByteBuffer buf = pool.acquire(FrameDecoder.HEADER_LENGTH + getEncodedLength());
+		encodeFrame(buf);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Encodes the message as a frame for one connection, in its negotiated
+	 * wire format. Must be called under the context's lock, and the frame
+	 * sent before the lock is released.
+	 */
+	public ByteBuffer encodeFrame(BufferPool pool, WireContext context) {
+		if(context == null || context.version < 2) {
+			return encodeFrame(pool);
+		}
+		ByteBuffer buf = pool.acquire(FrameDecoder.HEADER_LENGTH + getEncodedLength() + V2_SLACK);
+		int start = buf.position();
+		buf.position(start + FrameDecoder.HEADER_LENGTH);
+		encode(buf, context);
+		buf.putInt(start, buf.position() - start - FrameDecoder.HEADER_LENGTH);
+		buf.flip();
+		return buf;
+	}
+
 	void handle(Handler handler) {
 		handler.handle(this);
 	}
 	
 	//// STATIC
-	
-	final static Map<Type, Codec> CODECS = new HashMap<Type, Codec>();
+
+	/**
+	 * Registers the codec for a message type, replacing any existing one.
+	 */
+	public static void register(Type type, Codec codec) {
+		Codecs.byTag[type.tag & 0xff] = codec;
+	}
 	
 	public static Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+		return decode(buf, manager, null);
+	}
+
+	/**
+	 * Decodes a message in any supported version. Version 2 messages need
+	 * the context of the connection they arrived on.
+	 */
+	public static Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException {
+		if(buf.remaining() < 2) {
+			failed(manager, -1);
+			throw new CodecException("Message truncated: " + buf.remaining() + " bytes");
+		}
 		byte version = buf.get();
+		if(version < VERSION || version > MAX_VERSION || (version > VERSION && context == null)) {
+			failed(manager, -1);
+			throw new CodecException("Unsupported message version: " + version);
+		}
 		byte tag = buf.get();
-		Type type = Type.lookup(tag);
-		
-		if(type != null) {
-			Codec codec = CODECS.get(type);
-			if(codec != null) {
+		Codec codec = Codecs.byTag[tag & 0xff];
+		if(codec != null) {
+			try {
+				if(version > VERSION && codec instanceof ContextCodec) {
+					return ((ContextCodec) codec).decode(buf, manager, context);
+				}
 				return codec.decode(buf, manager);
-			} else {
-				throw new CodecException("No codec found for message type: " + tag);
+			} catch (BufferUnderflowException e) {
+				failed(manager, tag);
+				throw new CodecException("Message truncated, type: " + tag);
+			} catch (CodecException e) {
+				failed(manager, tag);
+				throw e;
 			}
+		}
+		failed(manager, tag);
+		if(Type.lookup(tag) != null) {
+			throw new CodecException("No codec found for message type: " + tag);
 		} else {
 			throw new CodecException("Unknown message type: " + tag);
 		}
 	}
 
+	static void failed(Manager manager, int tag) {
+		if(manager != null) {
+			manager.metrics.decodeFailed(tag);
+		}
+	}
+
+	/**
+	 * Codecs indexed by type tag. Kept in a holder class so the built-in
+	 * message classes are initialised before it is first used, whichever
+	 * class is loaded first.
+	 */
+	static class Codecs {
+		final static Codec[] byTag = new Codec[256];
+		static {
+			byTag[Type.HEARTBEAT.tag] = HelloMessage.CODEC;
+			byTag[Type.PARTY_BROADCAST.tag] = BeaconMessage.CODEC;
+			byTag[Type.PARTY_MESSAGE.tag] = PartyMessage.CODEC;
+			byTag[Type.APPLICATION_DATA_MESSAGE.tag] = ApplicationDataMessage.CODEC;
+		}
+	}
+
+	/**
+	 * Codec for message types with no body. Such messages are immutable, so
+	 * the same instance is returned every time.
+	 */
+	static class EmptyCodec implements Codec {
+		final Message message;
+
+		EmptyCodec(Type type) {
+			message = new Message(type);
+		}
+
+		public Message decode(ByteBuffer buf, Manager manager) {
+			return message;
+		}
+	}
+
 	public static class CodecException extends Exception {
 		public CodecException(String s) {
 			super(s);
@@ -0,0 +1,70 @@
+package com.dysoft.chatter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded intern cache for decoded member names. Names recur in message
+ * after message, so a name found here is decoded to the same String and
+ * bytes as last time, with nothing allocated. Direct mapped on a hash of
+ * the bytes: a colliding name simply replaces the entry.
+ *
+ * Safe to share between threads; entries are immutable, so a racing
+ * lookup at worst misses.
+ */
+public class NameCache {
+	final Entry[] entries;
+	final int mask;
+
+	/**
+	 * @param size  Rounded up to a power of two
+	 */
+	public NameCache(int size) {
+		int n = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		entries = new Entry[n];
+		mask = n - 1;
+	}
+
+	/**
+	 * Reads a name of the given length from the buffer.
+	 */
+	public Entry intern(ByteBuffer buf, int length) {
+		int start = buf.position();
+		int h = 0;
+		for(int i = 0; i < length; i++) {
+			h = 31 * h + buf.get(start + i);
+		}
+		int slot = (h ^ (h >>> 16)) & mask;
+
+		Entry e = entries[slot];
+		if(e != null && e.hash == h && matches(e.bytes, buf, start, length)) {
+			buf.position(start + length);
+			return e;
+		}
+
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		e = new Entry(h, new String(bytes, Message.CHARSET), bytes);
+		entries[slot] = e;
+		return e;
+	}
+
+	static boolean matches(byte[] bytes, ByteBuffer buf, int start, int length) {
+		if(bytes.length != length) return false;
+		for(int i = 0; i < length; i++) {
+			if(bytes[i] != buf.get(start + i)) return false;
+		}
+		return true;
+	}
+
+	public static class Entry {
+		final int hash;
+		public final String name;
+		public final byte[] bytes; //< Shared; must not be modified
+
+		Entry(int hash, String name, byte[] bytes) {
+			this.hash = hash;
+			this.name = name;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -1,25 +1,58 @@
 package com.dysoft.chatter;
 
 import com.dysoft.bones.StateMachine;
+import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Sean Micklethwaite
  *         24-Aug-2010
+ *
+ * The state machine is only driven through the party's own serial
+ * executor, so it has a single writer however many sessions deliver
+ * merge traffic for it, and whichever threads they run on.
  */
 public class Party extends StateMachine<Party.State> {
+	protected final static Logger LOG = Logger.getLogger(Party.class);
+	static final int MAX_CHANGES = 64; //< Membership changes kept for deltas
+
+	/** Runs tasks on the submitting thread; the serial executor keeps them from overlapping */
+	final static Executor CALLER_RUNS = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
 	final long id;
+	final SerialExecutor executor;
 
-	protected List<PartyMember> members;
+	protected List<PartyMember> members; //< Replaced, never modified, as messages may share it
+
+	int version = 0;
+	final ArrayDeque<VersionedChange> changes = new ArrayDeque<VersionedChange>();
 
 	public Party(long id, PartyMember me) {
+		this(id, me, CALLER_RUNS);
+	}
+
+	/**
+	 * @param executor  Runs the party's state transitions, one at a time
+	 */
+	public Party(long id, PartyMember me, Executor executor) {
 		super(new NullState());
 		this.id = id;
+		this.executor = new SerialExecutor(executor);
 		members = new ArrayList<PartyMember>(1);
 		members.add(me);
 
@@ -30,8 +63,205 @@ public class Party extends StateMachine<Party.State> {
 		return new PartyMessage.Details(0, id, members);
 	}
 
-	public void requestMerge(PeerSession peerSession, PartyMessage.MergeRequest msg, boolean asNewLeader) {
-		getState().requestMerge(peerSession, msg, asNewLeader);
+	public void requestMerge(final PeerSession peerSession, final PartyMessage.MergeRequest msg, final boolean asNewLeader) {
+		msg.detach(); // Handled after the frame has gone
+		executor.execute(new Runnable() {
+			public void run() {
+				getState().requestMerge(peerSession, msg, asNewLeader);
+			}
+		});
+	}
+
+	/**
+	 * Called when a peer accepted into the merge round in progress agrees
+	 * to it. The round completes once every peer accepted has.
+	 */
+	public void confirmMerge(final PeerSession peerSession) {
+		executor.execute(new Runnable() {
+			public void run() {
+				getState().confirmMerge(peerSession);
+			}
+		});
+	}
+
+	/**
+	 * Joins the party this one was merged into, taking the merged
+	 * membership and its version from the leader's MergeConfirm, so that
+	 * the leader's deltas follow on from it. Ignored unless this node still
+	 * leads its party and is not in a merge round of its own.
+	 */
+	public void joinParty(final PartyMessage.MergeConfirm msg) {
+		msg.detach(); // Handled after the frame has gone
+		executor.execute(new Runnable() {
+			public void run() {
+				if(!(getState() instanceof LeaderState)) return;
+				synchronized (Party.this) {
+					setMembers(msg.getMembers());
+					if(msg.getVersion() != PartyMessage.MergeConfirm.NO_VERSION) {
+						version = msg.getVersion();
+						changes.clear(); // Only the leader serves deltas
+					}
+				}
+				setState(new MemberState());
+			}
+		});
+	}
+
+	/**
+	 * Adds a member, bumping the membership version.
+	 */
+	public synchronized void addMember(PartyMember member) {
+		List<PartyMember> m = new ArrayList<PartyMember>(members.size() + 1);
+		m.addAll(members);
+		m.add(member);
+		members = m;
+		changed(new PartyMessage.Change(true, member));
+	}
+
+	/**
+	 * Removes the member with the same name, bumping the membership version.
+	 */
+	public synchronized void removeMember(PartyMember member) {
+		int i = indexOf(members, member.name);
+		if(i < 0) return;
+		List<PartyMember> m = new ArrayList<PartyMember>(members);
+		m.remove(i);
+		members = m;
+		changed(new PartyMessage.Change(false, member));
+	}
+
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	void changed(PartyMessage.Change change) {
+		version++;
+		changes.addLast(new VersionedChange(version, change));
+		if(changes.size() > MAX_CHANGES) {
+			changes.removeFirst();
+		}
+	}
+
+	/**
+	 * Builds the update that brings a member's node up to date: the changes
+	 * since the version it acknowledged, or a snapshot if those are no
+	 * longer all logged or would outweigh the membership itself.
+	 * @return null if the member is already up to date.
+	 */
+	public synchronized PartyMessage.Delta createUpdateMessage(PartyMember to) {
+		int base = to.ackedVersion;
+		if(base == version) return null;
+
+		int missing = version - base;
+		VersionedChange oldest = changes.peekFirst();
+		if(base < 0 || base > version || oldest == null || oldest.version > base + 1 || missing > members.size()) {
+			List<PartyMessage.Change> all = new ArrayList<PartyMessage.Change>(members.size());
+			for(int i = 0, n = members.size(); i < n; i++) {
+				all.add(new PartyMessage.Change(true, members.get(i)));
+			}
+			return new PartyMessage.Delta(0, id, PartyMessage.Delta.SNAPSHOT, version, all);
+		}
+
+		List<PartyMessage.Change> delta = new ArrayList<PartyMessage.Change>(missing);
+		for(VersionedChange c : changes) {
+			if(c.version > base) {
+				delta.add(c.change);
+			}
+		}
+		return new PartyMessage.Delta(0, id, base, version, delta);
+	}
+
+	/**
+	 * Sends each connected member whatever it is missing. Members reached
+	 * through the same session share its acknowledged version, so each
+	 * session is sent one update.
+	 */
+	public void sendUpdates() {
+		List<PartyMember> m;
+		synchronized (this) {
+			m = members;
+		}
+		Set<PeerSession> updated = new HashSet<PeerSession>();
+		for(int i = 0, n = m.size(); i < n; i++) {
+			PartyMember member = m.get(i);
+			PeerSession session = member.session;
+			if(session == null || !updated.add(session)) continue;
+			PartyMessage.Delta update = createUpdateMessage(member);
+			if(update == null) continue;
+			try {
+				session.send(update);
+			} catch (IOException e) {
+				LOG.error("Failed to update " + member.name, e);
+			}
+		}
+	}
+
+	/**
+	 * Applies a delta or snapshot from the leader.
+	 * @return The version now held, to acknowledge. If the delta does not
+	 * follow on from it, nothing is applied and the leader will fall back
+	 * to a snapshot.
+	 */
+	public synchronized int applyDelta(PartyMessage.Delta delta) {
+		List<PartyMember> m;
+		if(delta.isSnapshot()) {
+			m = new ArrayList<PartyMember>(delta.changes.size());
+		} else if(delta.baseVersion == version) {
+			m = new ArrayList<PartyMember>(members);
+		} else {
+			return version;
+		}
+
+		for(int i = 0, n = delta.changes.size(); i < n; i++) {
+			PartyMessage.Change c = delta.changes.get(i);
+			if(c.added) {
+				m.add(c.member);
+			} else {
+				int j = indexOf(m, c.member.name);
+				if(j >= 0) m.remove(j);
+			}
+		}
+		members = m;
+		version = delta.version;
+		changes.clear(); // Only the leader serves deltas
+		return version;
+	}
+
+	/**
+	 * Records the version a peer's node holds.
+	 */
+	public synchronized void acknowledged(PeerSession peer, int version) {
+		for(int i = 0, n = members.size(); i < n; i++) {
+			PartyMember member = members.get(i);
+			if(member.session == peer) {
+				member.ackedVersion = version;
+			}
+		}
+	}
+
+	/**
+	 * Brings the membership into line with a full list, as a series of
+	 * additions and removals, so the version and change log stay in step.
+	 */
+	public synchronized void setMembers(List<PartyMember> to) {
+		List<PartyMember> from = members;
+		for(int i = from.size() - 1; i >= 0; i--) {
+			if(indexOf(to, from.get(i).name) < 0) {
+				removeMember(from.get(i));
+			}
+		}
+		for(int i = 0, n = to.size(); i < n; i++) {
+			if(indexOf(members, to.get(i).name) < 0) {
+				addMember(to.get(i));
+			}
+		}
+	}
+
+	static int indexOf(List<PartyMember> members, String name) {
+		for(int i = 0, n = members.size(); i < n; i++) {
+			if(members.get(i).name.equals(name)) return i;
+		}
+		return -1;
 	}
 
 	protected boolean isPartyCompatible(PartyMessage.Details details) {
@@ -42,12 +272,19 @@ public class Party extends StateMachine<Party.State> {
 		return id;
 	}
 
+	/**
+	 * Called on the manager's thread for each application data datagram
+	 * addressed to this party. The payload is only valid during the call.
+	 */
+	protected void onData(ApplicationDataMessage msg, SocketAddress source) {
+	}
+
 
 	//// STATES
 
 	public interface State extends StateMachine.State {
 		public void requestMerge(PeerSession peerSession, PartyMessage.MergeRequest msg, boolean asNewLeader);
-		public void confirmMerge();
+		public void confirmMerge(PeerSession peerSession);
 	}
 
 	class MemberState extends NullState implements State {
@@ -55,7 +292,7 @@ public class Party extends StateMachine<Party.State> {
 		 * Updates the list of party members
 		 */
 		public void requestMerge(PeerSession peerSession, PartyMessage.MergeRequest msg, boolean asNewLeader) {
-			members = msg.getMembers();
+			setMembers(msg.getMembers());
 		}
 	}
 
@@ -67,7 +304,9 @@ public class Party extends StateMachine<Party.State> {
 		 * Locks the current party, and attempts to merge.
 		 */
 		public void requestMerge(PeerSession peerSession, PartyMessage.MergeRequest msg, boolean asNewLeader) {
-			setState(new MergeRequestState(this, peerSession, msg, asNewLeader));
+			Queue<PendingMerge> queue = new ArrayDeque<PendingMerge>();
+			queue.add(new PendingMerge(peerSession, msg, asNewLeader));
+			setState(new MergeRequestState(this, queue));
 		}
 
 
@@ -75,52 +314,181 @@ public class Party extends StateMachine<Party.State> {
 
 	public interface LockedState extends State {}
 
-	class MergeRequestState extends StateMachine<State>.WaitState implements LockedState {
-		final PeerSession peer;
-		final PartyMessage.Details details;
-		final boolean asNewLeader;
-		final Queue<MergeRequestState> mergeQueue;
+	/**
+	 * Moves to the timeout state if still active after the timeout. The
+	 * timeout is armed on a transport's timer, but runs on the party's
+	 * executor.
+	 */
+	abstract class WaitState extends BaseState implements State {
+		final State timeoutState;
+		final long timeout;
+		final Transport transport;
+		TimingWheel.Timeout pending = null;
 
-		public MergeRequestState(State parent, PeerSession peer, PartyMessage.Details details, boolean asNewLeader, Queue<MergeRequestState> mergeQueue) {
-			super(parent, parent, 1000);
-			this.peer = peer;
-			this.details = details;
-			this.asNewLeader = asNewLeader;
-			this.mergeQueue = mergeQueue;
+		/**
+		 * @param transport  Transport whose timer arms the timeout
+		 */
+		WaitState(State parent, State timeoutState, long timeout, Transport transport) {
+			super(parent);
+			this.timeoutState = timeoutState;
+			this.timeout = timeout;
+			this.transport = transport;
+		}
+
+		@Override
+		public void enter(StateMachine.State oldState) {
+			super.enter(oldState);
+			pending = transport.getTimer().schedule(new Manager.Task() {
+				public void run() {
+					executor.execute(new Runnable() {
+						public void run() {
+							if(getState().containsState(WaitState.this)) {
+								timedOut();
+							}
+						}
+					});
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+
+		void timedOut() {
+			setState(timeoutState);
 		}
 
-		public MergeRequestState(State parent, PeerSession peer, PartyMessage.Details details, boolean asNewLeader) {
-			this(parent, peer, details, asNewLeader, new ArrayDeque<MergeRequestState>());
+		@Override
+		public void exit(StateMachine.State newState) {
+			if(pending != null) {
+				pending.cancel();
+				pending = null;
+			}
+			super.exit(newState);
+		}
+	}
+
+	/**
+	 * Merges every request that was pending when the party was unlocked in
+	 * one round: each compatible party is accepted, and once every peer
+	 * accepted has confirmed, all of their members are added at once and a
+	 * single MergeConfirm carrying the merged membership goes to every peer
+	 * accepted. Requests arriving during the round are queued for the next.
+	 * If the round times out, nothing in it is merged.
+	 */
+	class MergeRequestState extends WaitState implements LockedState {
+		final Queue<PendingMerge> mergeQueue;
+		final List<PendingMerge> batch;
+		final List<PendingMerge> accepted;
+		final Set<PeerSession> awaiting = new HashSet<PeerSession>(); //< Accepted peers yet to agree
+
+		/**
+		 * @param mergeQueue  Drained into this round
+		 */
+		public MergeRequestState(State parent, Queue<PendingMerge> mergeQueue) {
+			super(parent, parent, 1000, mergeQueue.peek().peer.transport);
+			this.mergeQueue = mergeQueue;
+			batch = new ArrayList<PendingMerge>(mergeQueue);
+			accepted = new ArrayList<PendingMerge>(batch.size());
+			mergeQueue.clear();
 		}
 
 		/**
 		 * Queues merge request until party is unlocked.
 		 */
 		public void requestMerge(PeerSession peerSession, PartyMessage.MergeRequest msg, boolean asNewLeader) {
-			mergeQueue.add(new MergeRequestState((State)parent, peerSession, msg, asNewLeader, mergeQueue));
+			mergeQueue.add(new PendingMerge(peerSession, msg, asNewLeader));
 		}
 
-		public void confirmMerge() {
-
+		public void confirmMerge(PeerSession peerSession) {
+			if(!awaiting.remove(peerSession) || !awaiting.isEmpty()) return;
+			commit(accepted);
+			unlock();
 		}
 
-		@Override
-		public void enter(StateMachine.State oldState) {
-			super.enter(oldState);
+		/**
+		 * Adds the members of the given requests, and confirms the merge to
+		 * their peers.
+		 */
+		void commit(List<PendingMerge> merged) {
+			List<PeerSession> peers = new ArrayList<PeerSession>(merged.size());
+			PartyMessage.MergeConfirm confirm;
+			synchronized (Party.this) {
+				for(int i = 0; i < merged.size(); i++) {
+					PendingMerge request = merged.get(i);
+					List<PartyMember> joining = request.details.getMembers();
+					for(int j = 0, n = joining.size(); j < n; j++) {
+						PartyMember member = joining.get(j);
+						if(indexOf(members, member.name) < 0) {
+							// Reached through the peer that brought its party in
+							member.session = request.peer;
+							addMember(member);
+						}
+					}
+					if(!peers.contains(request.peer)) {
+						peers.add(request.peer);
+					}
+				}
+				// The confirm brings each peer up to this version
+				for(int i = 0; i < peers.size(); i++) {
+					acknowledged(peers.get(i), version);
+				}
+				confirm = new PartyMessage.MergeConfirm(0, id, members, version);
+			}
 
-			if(isPartyCompatible(details)) {
-				peer.acceptParty(details);
-			} else {
+			PeerManager manager = merged.get(0).peer.manager;
+			manager.multicast(confirm, peers);
+			long now = System.nanoTime();
+			for(int i = 0; i < merged.size(); i++) {
+				manager.metrics.mergeCompleted(now - merged.get(i).requested);
+			}
+			sendUpdates(); // Members from earlier merges get the new ones as a delta
+		}
+
+		/**
+		 * Ends the round, starting the next if requests were queued during it.
+		 */
+		void unlock() {
+			if(mergeQueue.isEmpty()) {
 				setState((State)parent);
+			} else {
+				setState(new MergeRequestState((State)parent, mergeQueue));
 			}
 		}
 
+		/**
+		 * Commits the peers that agreed in time. The rest are dropped, and
+		 * left to time out of their joins.
+		 */
 		@Override
-		public void exit(StateMachine.State newState) {
-			if(!newState.containsState(LockedState.class) && !mergeQueue.isEmpty()) {
-				setState(mergeQueue.remove());
+		void timedOut() {
+			List<PendingMerge> agreed = new ArrayList<PendingMerge>(accepted.size());
+			for(int i = 0; i < accepted.size(); i++) {
+				PendingMerge request = accepted.get(i);
+				if(awaiting.contains(request.peer)) {
+					request.peer.manager.metrics.mergeTimedOut();
+				} else {
+					agreed.add(request);
+				}
+			}
+			if(!agreed.isEmpty()) {
+				commit(agreed);
+			}
+			unlock();
+		}
+
+		@Override
+		public void enter(StateMachine.State oldState) {
+			super.enter(oldState);
+
+			for(int i = 0; i < batch.size(); i++) {
+				PendingMerge request = batch.get(i);
+				if(isPartyCompatible(request.details)) {
+					accepted.add(request);
+					awaiting.add(request.peer);
+					request.peer.acceptParty(Party.this, request.details);
+				}
+			}
+			if(accepted.isEmpty()) {
+				unlock();
 			}
-			super.exit(newState);
 		}
 
 		@Override
@@ -129,11 +497,37 @@ public class Party extends StateMachine<Party.State> {
 		}
 	}
 
+	/**
+	 * A peer's request to merge its party into this one.
+	 */
+	static class PendingMerge {
+		final PeerSession peer;
+		final PartyMessage.Details details;
+		final boolean asNewLeader;
+		final long requested = System.nanoTime();
+
+		PendingMerge(PeerSession peer, PartyMessage.Details details, boolean asNewLeader) {
+			this.peer = peer;
+			this.details = details.detach(); // May be queued past the frame's lifetime
+			this.asNewLeader = asNewLeader;
+		}
+	}
+
+	static class VersionedChange {
+		final int version;
+		final PartyMessage.Change change;
+
+		VersionedChange(int version, PartyMessage.Change change) {
+			this.version = version;
+			this.change = change;
+		}
+	}
+
 	static class NullState extends StateMachine.NullState implements State {
 		public void requestMerge(PeerSession peerSession, PartyMessage.MergeRequest msg, boolean asNewLeader) {
 		}
 
-		public void confirmMerge() {
+		public void confirmMerge(PeerSession peerSession) {
 		}
 	}
 }
@@ -11,4 +11,14 @@ public class PartyCodec {
 	public PartyMember decodePartyMember(ByteBuffer buf, int memberSize) {
 		return new PartyMember(buf, memberSize);
 	}
+
+	/**
+	 * Decodes a member in the version 2 format, where the name has already
+	 * been read (and interned).
+	 * @param nameBytes  Shared; must not be modified
+	 * @param extraSize  Length of the fields written by encodeExtra
+	 */
+	public PartyMember decodePartyMember(String name, byte[] nameBytes, ByteBuffer buf, int extraSize) {
+		return new PartyMember(name, nameBytes);
+	}
 }
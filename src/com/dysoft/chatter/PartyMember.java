@@ -1,5 +1,6 @@
 package com.dysoft.chatter;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
@@ -9,26 +10,48 @@ import java.nio.charset.Charset;
  */
 public class PartyMember {
 	final String name;
+	final byte [] nameBytes; //< Encoded once, reused for every message
 	PeerSession session = null;
+	int ackedVersion = -1; //< Party version the member's node has acknowledged
 
 	public PartyMember(String name) {
 		this.name = name;
+		nameBytes = name.getBytes(Message.CHARSET);
+	}
+
+	/**
+	 * @param nameBytes  Encoded name, which may be shared and must not be modified
+	 */
+	protected PartyMember(String name, byte[] nameBytes) {
+		this.name = name;
+		this.nameBytes = nameBytes;
 	}
 
 	public PartyMember(ByteBuffer buf, int len) {
 		int nameLen = buf.getInt();
-		byte [] nameBytes = new byte [nameLen];
+		if(nameLen < 0 || nameLen > len - 4) throw new BufferUnderflowException();
+		nameBytes = new byte [nameLen];
 		buf.get(nameBytes);
 		name = new String(nameBytes, Message.CHARSET);
 	}
 
 	public int getEncodedLength() {
-		return name.getBytes(Message.CHARSET).length + 4;
+		return nameBytes.length + 4;
 	}
 
 	public void encode(ByteBuffer buf) {
-		byte [] nameBytes = name.getBytes(Message.CHARSET);
 		buf.putInt(nameBytes.length);
 		buf.put(nameBytes);
 	}
+
+	/**
+	 * Length of the fields after the name in the version 2 format.
+	 * Subclasses with fields of their own override this and encodeExtra.
+	 */
+	public int getExtraLength() {
+		return 0;
+	}
+
+	public void encodeExtra(ByteBuffer buf) {
+	}
 }
@@ -1,10 +1,11 @@
 package com.dysoft.chatter;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * @author Sean Micklethwaite
@@ -19,12 +20,13 @@ public class PartyMessage extends Message {
 	}
 
 	public enum Type {
-		DETAILS(0), MERGE_REQUEST(1), MERGE_CONFIRM(2);
+		DETAILS(0), MERGE_REQUEST(1), MERGE_CONFIRM(2), DELTA(3), ACK(4),
+		PING(5), PING_REQ(6), PING_ACK(7);
 
-		final static Map<Byte, Type> typeMap = new HashMap<Byte, Type>();
+		final static Type[] byTag = new Type[256];
 		static {
 			for(Type t : values()) {
-				typeMap.put(t.tag, t);
+				byTag[t.tag & 0xff] = t;
 			}
 		}
 
@@ -35,7 +37,7 @@ public class PartyMessage extends Message {
 		}
 
 		public static Type lookup(byte tag) {
-			return typeMap.get(tag);
+			return byTag[tag & 0xff];
 		}
 	}
 
@@ -43,31 +45,52 @@ public class PartyMessage extends Message {
 		void handle(Details msg);
 		void handle(MergeRequest msg);
 		void handle(MergeConfirm msg);
+		void handle(Delta msg);
+		void handle(Ack msg);
+		void handle(Probe msg);
 	}
 
+	/**
+	 * Party membership. Decoded in lazy mode (see
+	 * {@link PeerManager#setLazyDecoding}) the message is a view of the
+	 * frame: fields are read on demand, and members are only decoded when
+	 * {@link #getMembers()} is called, so a message that is ignored costs
+	 * little more than a bounds check per member. Such a view is only valid
+	 * while the frame is, so call {@link #detach()} on any message kept
+	 * beyond its handler.
+	 */
 	public static class Details extends PartyMessage {
-		final long partyFormatID; //< Application specific
-		final long partyID;
-		final List<PartyMember> members;
+		long partyFormatID; //< Application specific
+		long partyID;
+		List<PartyMember> members;
+
+		final PeerManager manager;
+		ByteBuffer view = null; //< Undecoded body in lazy mode, from partyFormatID to the end of the members
+		int numMembers;
 
 		protected Details(Type type, long partyFormatID, long partyID, List<PartyMember> members) {
 			super(type);
 			this.partyFormatID = partyFormatID;
 			this.partyID = partyID;
 			this.members = members;
+			this.manager = null;
 		}
 
 		public Details(long partyFormatID, long partyID, List<PartyMember> members) {
 			this(Type.DETAILS, partyFormatID,partyID,members);
 		}
 
-		public Details(Type type, ByteBuffer buf, PeerManager manager) {
+		public Details(Type type, ByteBuffer buf, PeerManager manager) throws CodecException {
 			super(type);
+			this.manager = manager;
 			partyFormatID = buf.getLong();
 			partyID = buf.getLong();
 			PartyCodec partyCodec = manager.getPartyCodec(partyFormatID);
 
 			int numMembers = buf.getInt();
+			if(numMembers < 0 || numMembers > buf.remaining()) {
+				throw new CodecException("Invalid member count: " + numMembers);
+			}
 			members = new ArrayList<PartyMember>(numMembers);
 			while(numMembers-- > 0) {
 				int memberSize = buf.getInt();
@@ -75,10 +98,60 @@ public class PartyMessage extends Message {
 			}
 		}
 
+		/**
+		 * Decodes the version 2 format.
+		 */
+		public Details(Type type, ByteBuffer buf, PeerManager manager, WireContext context) throws CodecException {
+			super(type);
+			this.manager = manager;
+			partyFormatID = Varint.getLong(buf);
+			partyID = Varint.getLong(buf);
+			PartyCodec partyCodec = manager.getPartyCodec(partyFormatID);
+
+			int numMembers = Varint.getInt(buf);
+			if(numMembers < 0 || numMembers > buf.remaining()) {
+				throw new CodecException("Invalid member count: " + numMembers);
+			}
+			members = new ArrayList<PartyMember>(numMembers);
+			while(numMembers-- > 0) {
+				members.add(context.decodeMember(buf, partyCodec));
+			}
+		}
+
+		/**
+		 * Wraps the version 1 body without decoding it. Only the member sizes
+		 * are walked, to check the frame holds them all; the buffer is left
+		 * positioned after the last member.
+		 */
+		public Details(Type type, ByteBuffer buf, PeerManager manager, boolean lazy) throws CodecException {
+			super(type);
+			this.manager = manager;
+			int start = buf.position();
+			int limit = buf.limit();
+			if(limit - start < 20) throw new BufferUnderflowException();
+			numMembers = buf.getInt(start + 16);
+			if(numMembers < 0) {
+				throw new CodecException("Invalid member count: " + numMembers);
+			}
+			int pos = start + 20;
+			for(int i = 0; i < numMembers; i++) {
+				if(limit - pos < 4) throw new BufferUnderflowException();
+				int size = buf.getInt(pos);
+				if(size < 0 || size > limit - pos - 4) throw new BufferUnderflowException();
+				pos += 4 + size;
+			}
+			buf.limit(pos);
+			view = buf.slice();
+			buf.limit(limit).position(pos);
+		}
+
 		public int getEncodedLength() {
+			if(view != null) {
+				return super.getEncodedLength() + 1 + view.limit();
+			}
 			int tot = super.getEncodedLength() + 21;
-			for(PartyMember m : members) {
-				tot += m.getEncodedLength() + 4;
+			for(int i = 0, n = members.size(); i < n; i++) {
+				tot += members.get(i).getEncodedLength() + 4;
 			}
 			return tot;
 		}
@@ -87,26 +160,163 @@ public class PartyMessage extends Message {
 		public void encode(ByteBuffer buf) {
 			super.encode(buf);
 			buf.put(type.tag);
+			if(view != null) {
+				buf.put(view.duplicate()); // Forwarded as received
+				return;
+			}
 			buf.putLong(partyFormatID);
 			buf.putLong(partyID);
-			buf.putInt(members.size());
-			for(PartyMember m : members) {
+			int n = members.size();
+			buf.putInt(n);
+			for(int i = 0; i < n; i++) {
+				// Members are written without iterators, so encoding allocates nothing
+				PartyMember m = members.get(i);
 				buf.putInt(m.getEncodedLength());
 				m.encode(buf);
 			}
 		}
 
+		@Override
+		void encode(ByteBuffer buf, WireContext context) {
+			if(context.version < 2) {
+				super.encode(buf, context);
+				return;
+			}
+			List<PartyMember> members = getMembers();
+			buf.put((byte)context.version);
+			buf.put(Message.Type.PARTY_MESSAGE.tag);
+			buf.put(type.tag);
+			Varint.putLong(buf, getPartyFormatID());
+			Varint.putLong(buf, getPartyID());
+			int n = members.size();
+			Varint.putInt(buf, n);
+			for(int i = 0; i < n; i++) {
+				context.encodeMember(buf, members.get(i));
+			}
+		}
+
+		@Override
+		void handle(Message.Handler handler) {
+			if(handler instanceof Handler) {
+				((Handler) handler).handle(this);
+			} else {
+				handler.handle(this);
+			}
+		}
+
 		public long getPartyFormatID() {
-			return partyFormatID;
+			return view != null ? view.getLong(0) : partyFormatID;
 		}
 
 		public long getPartyID() {
-			return partyID;
+			return view != null ? view.getLong(8) : partyID;
+		}
+
+		public int getMemberCount() {
+			return view != null ? numMembers : members.size();
 		}
 
+		/**
+		 * @return The members, decoding them on first call in lazy mode.
+		 */
 		public List<PartyMember> getMembers() {
+			if(members == null) {
+				PartyCodec codec = manager.getPartyCodec(getPartyFormatID());
+				List<PartyMember> m = new ArrayList<PartyMember>(numMembers);
+				ByteBuffer buf = view.duplicate();
+				buf.position(20);
+				for(int i = 0; i < numMembers; i++) {
+					int size = buf.getInt();
+					int end = buf.position() + size;
+					// Keep the codec within the member it is decoding
+					buf.limit(end);
+					m.add(codec.decodePartyMember(buf, size));
+					buf.limit(view.limit()).position(end);
+				}
+				members = m;
+			}
 			return members;
 		}
+
+		/**
+		 * Iterates over the members without decoding them. Every call to
+		 * next() returns the same view, moved on to the next member; call
+		 * {@link MemberView#toMember()} for any that should be kept.
+		 */
+		public Iterator<MemberView> memberViews() {
+			final MemberView member = new MemberView();
+			return new Iterator<MemberView>() {
+				int index = 0;
+				int offset = 20;
+
+				public boolean hasNext() {
+					return index < getMemberCount();
+				}
+
+				public MemberView next() {
+					if(!hasNext()) throw new NoSuchElementException();
+					if(view != null) {
+						member.offset = offset;
+						offset += 4 + view.getInt(offset);
+					} else {
+						member.member = members.get(index);
+					}
+					index++;
+					return member;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * Decodes anything still held as a view of the frame, so the message
+		 * can be kept after the frame is gone.
+		 * @return this
+		 */
+		public Details detach() {
+			if(view != null) {
+				getMembers();
+				partyFormatID = view.getLong(0);
+				partyID = view.getLong(8);
+				view = null;
+			}
+			return this;
+		}
+
+		/**
+		 * Flyweight over one member of a Details message.
+		 */
+		public class MemberView {
+			int offset;				//< Of the member's size field, in lazy mode
+			PartyMember member;		//< Otherwise
+
+			/**
+			 * Reads the name straight from the frame, interned, so usually
+			 * without allocating. This assumes the member starts with the
+			 * name as {@link PartyMember#encode} writes it, which a codec's
+			 * members must keep, putting any fields of their own after it.
+			 */
+			public String getName() {
+				if(view == null) return member.name;
+				int size = view.getInt(offset);
+				int nameLen = size < 4 ? -1 : view.getInt(offset + 4);
+				if(nameLen < 0 || nameLen > size - 4) throw new BufferUnderflowException();
+				ByteBuffer buf = view.duplicate();
+				buf.position(offset + 8);
+				return manager.names.intern(buf, nameLen).name;
+			}
+
+			public PartyMember toMember() {
+				if(view == null) return member;
+				ByteBuffer buf = view.duplicate();
+				int size = buf.getInt(offset);
+				buf.position(offset + 4).limit(offset + 4 + size);
+				return manager.getPartyCodec(getPartyFormatID()).decodePartyMember(buf, size);
+			}
+		}
 	}
 
 	public static class MergeRequest extends Details {
@@ -117,11 +327,21 @@ public class PartyMessage extends Message {
 			this.clientPartyID = clientPartyID;
 		}
 
-		public MergeRequest(ByteBuffer buf, PeerManager manager) {
+		public MergeRequest(ByteBuffer buf, PeerManager manager) throws CodecException {
 			super(Type.MERGE_REQUEST, buf, manager);
 			clientPartyID = buf.getLong();
 		}
 
+		public MergeRequest(ByteBuffer buf, PeerManager manager, boolean lazy) throws CodecException {
+			super(Type.MERGE_REQUEST, buf, manager, lazy);
+			clientPartyID = buf.getLong();
+		}
+
+		public MergeRequest(ByteBuffer buf, PeerManager manager, WireContext context) throws CodecException {
+			super(Type.MERGE_REQUEST, buf, manager, context);
+			clientPartyID = Varint.getLong(buf);
+		}
+
 		@Override
 		public int getEncodedLength() {
 			return super.getEncodedLength() + 8;
@@ -133,35 +353,548 @@ public class PartyMessage extends Message {
 			buf.putLong(clientPartyID);
 		}
 
+		@Override
+		void encode(ByteBuffer buf, WireContext context) {
+			super.encode(buf, context); // Version 1 goes through encode(buf), ID and all
+			if(context.version >= 2) {
+				Varint.putLong(buf, clientPartyID);
+			}
+		}
+
 		public long getClientPartyID() {
 			return clientPartyID;
 		}
+
+		@Override
+		void handle(Message.Handler handler) {
+			if(handler instanceof Handler) {
+				((Handler) handler).handle(this);
+			} else {
+				handler.handle(this);
+			}
+		}
 	}
 
+	/**
+	 * Agreement to a merge, or from the leader, the merged membership. The
+	 * leader's also carries the membership version, so that deltas can
+	 * follow on from it; it comes after the members, and is NO_VERSION if
+	 * the sender did not give one.
+	 */
 	public static class MergeConfirm extends Details {
+		public final static int NO_VERSION = -1;
+
+		final int version;
+
 		public MergeConfirm(long partyFormatID, long partyID, List<PartyMember> members) {
+			this(partyFormatID, partyID, members, NO_VERSION);
+		}
+
+		public MergeConfirm(long partyFormatID, long partyID, List<PartyMember> members, int version) {
 			super(Type.MERGE_CONFIRM, partyFormatID, partyID, members);
+			this.version = version;
 		}
 
-		public MergeConfirm(ByteBuffer buf, PeerManager manager) {
+		public MergeConfirm(ByteBuffer buf, PeerManager manager) throws CodecException {
 			super(Type.MERGE_CONFIRM, buf, manager);
+			version = buf.remaining() >= 4 ? buf.getInt() : NO_VERSION;
+		}
+
+		public MergeConfirm(ByteBuffer buf, PeerManager manager, boolean lazy) throws CodecException {
+			super(Type.MERGE_CONFIRM, buf, manager, lazy);
+			version = buf.remaining() >= 4 ? buf.getInt() : NO_VERSION;
+		}
+
+		public MergeConfirm(ByteBuffer buf, PeerManager manager, WireContext context) throws CodecException {
+			super(Type.MERGE_CONFIRM, buf, manager, context);
+			version = buf.hasRemaining() ? Varint.getSignedInt(buf) : NO_VERSION;
+		}
+
+		@Override
+		public int getEncodedLength() {
+			return super.getEncodedLength() + 4;
+		}
+
+		@Override
+		public void encode(ByteBuffer buf) {
+			super.encode(buf);
+			buf.putInt(version);
+		}
+
+		@Override
+		void encode(ByteBuffer buf, WireContext context) {
+			super.encode(buf, context); // Version 1 goes through encode(buf), version and all
+			if(context.version >= 2) {
+				Varint.putSignedInt(buf, version);
+			}
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		@Override
+		void handle(Message.Handler handler) {
+			if(handler instanceof Handler) {
+				((Handler) handler).handle(this);
+			} else {
+				handler.handle(this);
+			}
+		}
+	}
+
+	/**
+	 * A member added to or removed from a party. Removed members are
+	 * matched by name.
+	 */
+	public static class Change {
+		final boolean added;
+		final PartyMember member;
+
+		public Change(boolean added, PartyMember member) {
+			this.added = added;
+			this.member = member;
+		}
+
+		public boolean isAdded() {
+			return added;
+		}
+
+		public PartyMember getMember() {
+			return member;
+		}
+	}
+
+	/**
+	 * Membership changes taking a party from one version to another, or
+	 * with a base version of SNAPSHOT, the whole membership as additions to
+	 * an empty party.
+	 */
+	public static class Delta extends PartyMessage {
+		public final static int SNAPSHOT = -1;
+
+		final long partyFormatID;
+		final long partyID;
+		final int baseVersion;
+		final int version;
+		final List<Change> changes;
+
+		public Delta(long partyFormatID, long partyID, int baseVersion, int version, List<Change> changes) {
+			super(Type.DELTA);
+			this.partyFormatID = partyFormatID;
+			this.partyID = partyID;
+			this.baseVersion = baseVersion;
+			this.version = version;
+			this.changes = changes;
+		}
+
+		public Delta(ByteBuffer buf, PeerManager manager) throws CodecException {
+			super(Type.DELTA);
+			partyFormatID = buf.getLong();
+			partyID = buf.getLong();
+			baseVersion = buf.getInt();
+			version = buf.getInt();
+			PartyCodec partyCodec = manager.getPartyCodec(partyFormatID);
+
+			int numChanges = buf.getInt();
+			if(numChanges < 0 || numChanges > buf.remaining()) {
+				throw new CodecException("Invalid change count: " + numChanges);
+			}
+			changes = new ArrayList<Change>(numChanges);
+			while(numChanges-- > 0) {
+				boolean added = buf.get() != 0;
+				int memberSize = buf.getInt();
+				changes.add(new Change(added, partyCodec.decodePartyMember(buf, memberSize)));
+			}
+		}
+
+		public Delta(ByteBuffer buf, PeerManager manager, WireContext context) throws CodecException {
+			super(Type.DELTA);
+			partyFormatID = Varint.getLong(buf);
+			partyID = Varint.getLong(buf);
+			baseVersion = Varint.getSignedInt(buf);
+			version = Varint.getInt(buf);
+			PartyCodec partyCodec = manager.getPartyCodec(partyFormatID);
+
+			int numChanges = Varint.getInt(buf);
+			if(numChanges < 0 || numChanges > buf.remaining()) {
+				throw new CodecException("Invalid change count: " + numChanges);
+			}
+			changes = new ArrayList<Change>(numChanges);
+			while(numChanges-- > 0) {
+				boolean added = buf.get() != 0;
+				changes.add(new Change(added, context.decodeMember(buf, partyCodec)));
+			}
+		}
+
+		@Override
+		public int getEncodedLength() {
+			int tot = super.getEncodedLength() + 29;
+			for(int i = 0, n = changes.size(); i < n; i++) {
+				tot += changes.get(i).member.getEncodedLength() + 5;
+			}
+			return tot;
+		}
+
+		@Override
+		public void encode(ByteBuffer buf) {
+			super.encode(buf);
+			buf.put(type.tag);
+			buf.putLong(partyFormatID);
+			buf.putLong(partyID);
+			buf.putInt(baseVersion);
+			buf.putInt(version);
+			int n = changes.size();
+			buf.putInt(n);
+			for(int i = 0; i < n; i++) {
+				Change c = changes.get(i);
+				buf.put((byte)(c.added ? 1 : 0));
+				buf.putInt(c.member.getEncodedLength());
+				c.member.encode(buf);
+			}
+		}
+
+		@Override
+		void encode(ByteBuffer buf, WireContext context) {
+			if(context.version < 2) {
+				super.encode(buf, context);
+				return;
+			}
+			buf.put((byte)context.version);
+			buf.put(Message.Type.PARTY_MESSAGE.tag);
+			buf.put(type.tag);
+			Varint.putLong(buf, partyFormatID);
+			Varint.putLong(buf, partyID);
+			Varint.putSignedInt(buf, baseVersion);
+			Varint.putInt(buf, version);
+			int n = changes.size();
+			Varint.putInt(buf, n);
+			for(int i = 0; i < n; i++) {
+				Change c = changes.get(i);
+				buf.put((byte)(c.added ? 1 : 0));
+				context.encodeMember(buf, c.member);
+			}
+		}
+
+		@Override
+		void handle(Message.Handler handler) {
+			if(handler instanceof Handler) {
+				((Handler) handler).handle(this);
+			} else {
+				handler.handle(this);
+			}
+		}
+
+		public long getPartyID() {
+			return partyID;
+		}
+
+		public int getBaseVersion() {
+			return baseVersion;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		public boolean isSnapshot() {
+			return baseVersion == SNAPSHOT;
+		}
+
+		public List<Change> getChanges() {
+			return changes;
+		}
+	}
+
+	/**
+	 * The membership version a peer now holds, so the leader knows what to
+	 * send it deltas from.
+	 */
+	public static class Ack extends PartyMessage {
+		final long partyID;
+		final int version;
+
+		public Ack(long partyID, int version) {
+			super(Type.ACK);
+			this.partyID = partyID;
+			this.version = version;
+		}
+
+		public Ack(ByteBuffer buf) {
+			super(Type.ACK);
+			partyID = buf.getLong();
+			version = buf.getInt();
+		}
+
+		@Override
+		public int getEncodedLength() {
+			return super.getEncodedLength() + 13;
+		}
+
+		@Override
+		public void encode(ByteBuffer buf) {
+			super.encode(buf);
+			buf.put(type.tag);
+			buf.putLong(partyID);
+			buf.putInt(version);
+		}
+
+		@Override
+		void handle(Message.Handler handler) {
+			if(handler instanceof Handler) {
+				((Handler) handler).handle(this);
+			} else {
+				handler.handle(this);
+			}
+		}
+
+		public long getPartyID() {
+			return partyID;
+		}
+
+		public int getVersion() {
+			return version;
 		}
 	}
 
+	/**
+	 * Failure detector traffic for gossip parties: a PING, its PING_ACK, or
+	 * a PING_REQ asking the recipient to ping the target on the sender's
+	 * behalf and pass the ack back. Every probe carries membership updates.
+	 */
+	public static class Probe extends PartyMessage {
+		final long partyFormatID;
+		final long partyID;
+		final int seq;
+		final long from;	//< Sending node; for acks, the node that was pinged
+		final long target;	//< Node to ping, for PING_REQ; see GossipParty for PING and PING_ACK
+		final List<Update> updates;
+
+		public Probe(Type type, long partyFormatID, long partyID, int seq, long from, long target, List<Update> updates) {
+			super(type);
+			this.partyFormatID = partyFormatID;
+			this.partyID = partyID;
+			this.seq = seq;
+			this.from = from;
+			this.target = target;
+			this.updates = updates;
+		}
+
+		public Probe(Type type, ByteBuffer buf, PeerManager manager) throws CodecException {
+			super(type);
+			partyFormatID = buf.getLong();
+			partyID = buf.getLong();
+			seq = buf.getInt();
+			from = buf.getLong();
+			target = buf.getLong();
+			PartyCodec partyCodec = manager.getPartyCodec(partyFormatID);
+
+			int numUpdates = buf.getInt();
+			if(numUpdates < 0 || numUpdates > buf.remaining()) {
+				throw new CodecException("Invalid update count: " + numUpdates);
+			}
+			updates = new ArrayList<Update>(numUpdates);
+			while(numUpdates-- > 0) {
+				byte status = buf.get();
+				int incarnation = buf.getInt();
+				long nodeID = buf.getLong();
+				int memberSize = buf.getInt();
+				updates.add(new Update(status, incarnation, nodeID, partyCodec.decodePartyMember(buf, memberSize)));
+			}
+		}
+
+		@Override
+		public int getEncodedLength() {
+			int tot = super.getEncodedLength() + 41;
+			for(int i = 0, n = updates.size(); i < n; i++) {
+				tot += updates.get(i).member.getEncodedLength() + 17;
+			}
+			return tot;
+		}
+
+		@Override
+		public void encode(ByteBuffer buf) {
+			super.encode(buf);
+			buf.put(type.tag);
+			buf.putLong(partyFormatID);
+			buf.putLong(partyID);
+			buf.putInt(seq);
+			buf.putLong(from);
+			buf.putLong(target);
+			int n = updates.size();
+			buf.putInt(n);
+			for(int i = 0; i < n; i++) {
+				Update u = updates.get(i);
+				buf.put(u.status);
+				buf.putInt(u.incarnation);
+				buf.putLong(u.nodeID);
+				buf.putInt(u.member.getEncodedLength());
+				u.member.encode(buf);
+			}
+		}
+
+		@Override
+		void handle(Message.Handler handler) {
+			if(handler instanceof Handler) {
+				((Handler) handler).handle(this);
+			} else {
+				handler.handle(this);
+			}
+		}
+
+		public Type getProbeType() {
+			return type;
+		}
+
+		public long getPartyID() {
+			return partyID;
+		}
+
+		public int getSeq() {
+			return seq;
+		}
+
+		public long getFrom() {
+			return from;
+		}
+
+		public long getTarget() {
+			return target;
+		}
+
+		public List<Update> getUpdates() {
+			return updates;
+		}
+	}
+
+	/**
+	 * What a gossip party member believes about another: alive, suspected
+	 * of failing, or dead, as of the member's incarnation. Only the member
+	 * itself raises its incarnation, to refute suspicion.
+	 */
+	public static class Update {
+		public final static byte ALIVE = 0, SUSPECT = 1, DEAD = 2;
+
+		final byte status;
+		final int incarnation;
+		final long nodeID;
+		final PartyMember member;
+
+		public Update(byte status, int incarnation, long nodeID, PartyMember member) {
+			this.status = status;
+			this.incarnation = incarnation;
+			this.nodeID = nodeID;
+			this.member = member;
+		}
+
+		public byte getStatus() {
+			return status;
+		}
+
+		public int getIncarnation() {
+			return incarnation;
+		}
+
+		public long getNodeID() {
+			return nodeID;
+		}
+
+		public PartyMember getMember() {
+			return member;
+		}
+	}
+
+	//// CODECS
+
+	final static Codec[] CODECS = new Codec[256];
 	static {
-		Message.CODECS.put(Message.Type.PARTY_MESSAGE, new Codec() {
+		CODECS[Type.DETAILS.tag] = new ContextCodec() {
 			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
-				byte tag = buf.get();
-				if(tag == Type.DETAILS.tag) {
-					return new Details(Type.DETAILS, buf, (PeerManager)manager);
-				} else if(tag == Type.MERGE_REQUEST.tag) {
-					return new MergeRequest(buf, (PeerManager)manager);
-				} else if(tag == Type.MERGE_CONFIRM.tag) {
-					return new MergeConfirm(buf, (PeerManager)manager);
-				} else {
-					throw new CodecException("Unkown PartyMessage type: " + tag);
-				}
+				PeerManager pm = (PeerManager)manager;
+				return pm.lazyDecoding ? new Details(Type.DETAILS, buf, pm, true) : new Details(Type.DETAILS, buf, pm);
+			}
+
+			public Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException {
+				return new Details(Type.DETAILS, buf, (PeerManager)manager, context);
+			}
+		};
+		CODECS[Type.MERGE_REQUEST.tag] = new ContextCodec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				PeerManager pm = (PeerManager)manager;
+				return pm.lazyDecoding ? new MergeRequest(buf, pm, true) : new MergeRequest(buf, pm);
+			}
+
+			public Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException {
+				return new MergeRequest(buf, (PeerManager)manager, context);
+			}
+		};
+		CODECS[Type.MERGE_CONFIRM.tag] = new ContextCodec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				PeerManager pm = (PeerManager)manager;
+				return pm.lazyDecoding ? new MergeConfirm(buf, pm, true) : new MergeConfirm(buf, pm);
+			}
+
+			public Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException {
+				return new MergeConfirm(buf, (PeerManager)manager, context);
+			}
+		};
+		CODECS[Type.DELTA.tag] = new ContextCodec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				return new Delta(buf, (PeerManager)manager);
+			}
+
+			public Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException {
+				return new Delta(buf, (PeerManager)manager, context);
 			}
-		});
+		};
+		CODECS[Type.ACK.tag] = new Codec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				return new Ack(buf);
+			}
+		};
+		CODECS[Type.PING.tag] = new Codec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				return new Probe(Type.PING, buf, (PeerManager)manager);
+			}
+		};
+		CODECS[Type.PING_REQ.tag] = new Codec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				return new Probe(Type.PING_REQ, buf, (PeerManager)manager);
+			}
+		};
+		CODECS[Type.PING_ACK.tag] = new Codec() {
+			public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+				return new Probe(Type.PING_ACK, buf, (PeerManager)manager);
+			}
+		};
 	}
+
+	/**
+	 * Dispatches on the sub-type tag.
+	 */
+	final static ContextCodec CODEC = new ContextCodec() {
+		public Message decode(ByteBuffer buf, Manager manager) throws CodecException {
+			return subtype(buf).decode(buf, manager);
+		}
+
+		public Message decode(ByteBuffer buf, Manager manager, WireContext context) throws CodecException {
+			Codec codec = subtype(buf);
+			if(codec instanceof ContextCodec) {
+				return ((ContextCodec) codec).decode(buf, manager, context);
+			}
+			return codec.decode(buf, manager);
+		}
+
+		Codec subtype(ByteBuffer buf) throws CodecException {
+			if(!buf.hasRemaining()) {
+				throw new CodecException("PartyMessage truncated");
+			}
+			byte tag = buf.get();
+			Codec codec = CODECS[tag & 0xff];
+			if(codec == null) {
+				throw new CodecException("Unknown PartyMessage type: " + tag);
+			}
+			return codec;
+		}
+	};
 }
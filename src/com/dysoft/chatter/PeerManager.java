@@ -3,13 +3,14 @@ package com.dysoft.chatter;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
 
 /**
  * @author Sean Micklethwaite
@@ -18,22 +19,41 @@ import java.util.*;
  * This class sends out party broadcasts, and accepts incoming TCP
  * connections. It also receives UDP data and sends it to the appropriate
  * party.
+ *
+ * The peer and party registries are safe to use from any thread. Lookups
+ * take no locks and allocate nothing.
  */
-public class PeerManager extends Manager implements Manager.Dispatcher, TransportSession {
+public class PeerManager extends Manager implements Manager.Dispatcher, Manager.DatagramSession {
 	protected final static Logger LOG = Logger.getLogger(PeerManager.class);
 
+	final long nodeID = newNodeID();
+
 	DatagramChannel dataChannel;
-	MulticastSocket broadcaster;
-	SocketTransport dataTransport;
-	
-	Timer broadcastTimer = new Timer();
+	Discovery discovery;
 
-	final Map<SocketAddress, PeerSession> peers = new HashMap<SocketAddress, PeerSession>();
-	final Map<Long, Party> parties = new HashMap<Long, Party>();
+	final ConcurrentMap<SocketAddress, PeerSession> peers = new ConcurrentHashMap<SocketAddress, PeerSession>();
+	final LongMap<PeerSession> peersByNode = new LongMap<PeerSession>();
+	final ConcurrentMap<SocketAddress, Long> dialing = new ConcurrentHashMap<SocketAddress, Long>(); //< Address to node ID, 0 if unknown
+	final LongMap<Party> parties = new LongMap<Party>();
+	final LongMap<PartyCodec> partyCodecs = new LongMap<PartyCodec>();
+	final PartyCodec defaultPartyCodec = new PartyCodec();
+	final NameCache names = new NameCache(4096);
+	volatile boolean lazyDecoding = false;
+	volatile int compressionThreshold = 0;		//< Smallest frame to compress, 0 for none
+	volatile int compressionLevel = Deflater.BEST_SPEED;
+	FrameCompressor datagramCompressor;	//< Compresses from any thread, inflates on the data channel's reactor
 
 	public PeerManager() throws IOException {
 	}
 
+	/**
+	 * @param numWorkers  Number of selector threads peer connections are
+	 *                    spread over.
+	 */
+	public PeerManager(int numWorkers) throws IOException {
+		super(numWorkers);
+	}
+
 	/**
 	 * Starts listening for broadcasts and data on the specified UDP port,
 	 * and accepting peer connections on the TCP port.
@@ -44,42 +64,60 @@ public class PeerManager extends Manager implements Manager.Dispatcher, Transpor
 	public void listen(int udpPort, int tcpPort) throws IOException {
 		listen("0.0.0.0", tcpPort, this);
 
-		broadcaster = new MulticastSocket();
+		discovery = new Discovery(this, tcpPort);
 
+		datagramCompressor = new FrameCompressor(bufferPool, metrics);
 		dataChannel = DatagramChannel.open();
 		dataChannel.socket().bind(new InetSocketAddress(udpPort));
 		dataChannel.socket().setBroadcast(true);
-		dataChannel.configureBlocking(false);
+		registerDatagram(dataChannel, this);
 	}
 
-	public void startBroadcasting() {
-		broadcastTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				SocketAddress src = null;
-				try {
-					ByteBuffer buf = ByteBuffer.allocate(128);
-					src = dataChannel.receive(buf);
+	/**
+	 * Starts announcing this node and connecting to the peers found. Configure
+	 * the groups and ports used through getDiscovery() first.
+	 */
+	public void startBroadcasting() throws IOException {
+		discovery.start();
+	}
 
-					if(src != null) {
-						buf.flip();
-						System.out.println("GOT PACKET from " + src);
-						connect(new InetSocketAddress(((InetSocketAddress)src).getAddress(), 1234), PeerManager.this);
-						return;
-					}
+	/**
+	 * @return The discovery service, once listen() has been called.
+	 */
+	public Discovery getDiscovery() {
+		return discovery;
+	}
 
-					Message msg = new Message(Message.Type.PARTY_BROADCAST);
+	/**
+	 * @return Random identity of this node, announced in discovery beacons.
+	 */
+	public long getNodeID() {
+		return nodeID;
+	}
 
-					msg.encode(buf);
-					buf.flip();
-					dataChannel.send(buf, new InetSocketAddress("255.255.255.255", 12345));
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+	/**
+	 * Connects to a peer unless there is already a session with it or a
+	 * connect in progress.
+	 */
+	public void dial(InetSocketAddress address) {
+		dial(0, address);
+	}
 
-				startBroadcasting();
-			}
-		}, 1000);
+	/**
+	 * As {@link #dial(InetSocketAddress)}, for a peer whose node ID is known.
+	 * The session is indexed under the node ID once connected.
+	 */
+	public void dial(long nodeID, InetSocketAddress address) {
+		if(nodeID != 0 && peersByNode.containsKey(nodeID)) return;
+		if(peers.containsKey(address)) return;
+		if(dialing.putIfAbsent(address, nodeID) != null) return;
+
+		try {
+			connect(address, this);
+		} catch (IOException e) {
+			dialing.remove(address);
+			LOG.error("Failed to connect to " + address, e);
+		}
 	}
 
 
@@ -97,23 +135,184 @@ public class PeerManager extends Manager implements Manager.Dispatcher, Transpor
 		LOG.info("Connected to " + channel.getSocketAddress());
 		PeerSession peer = new PeerSession(this, channel);
 		peers.put(channel.getSocketAddress(), peer);
+		Long nodeID = dialing.remove(channel.getSocketAddress());
+		if(nodeID != null && nodeID != 0) {
+			bindNode(peer, nodeID);
+		}
 		peer.startClient();
-		return null;
+		return peer;
+	}
+
+	public void onConnectFailed(Transport channel, IOException cause) {
+		LOG.info("Failed to connect to " + channel.getSocketAddress() + ": " + cause.getMessage());
+		dialing.remove(channel.getSocketAddress());
+	}
+
+	/**
+	 * Forgets a closed session, and detaches it from any party members it
+	 * was connected to.
+	 */
+	void removePeer(PeerSession peer) {
+		peers.remove(peer.transport.getSocketAddress(), peer);
+		if(peer.nodeID != 0) {
+			peersByNode.remove(peer.nodeID, peer);
+		}
+		for(Party party : getParties()) {
+			List<PartyMember> members = party.members;
+			for(int i = 0, n = members.size(); i < n; i++) {
+				if(members.get(i).session == peer) {
+					members.get(i).session = null;
+				}
+			}
+		}
+	}
+
+
+	//// DatagramSession - UDP Data
+
+	public void onReceive(ByteBuffer data, SocketAddress source) {
+		ByteBuffer inflated = null;
+		try {
+			if(data.hasRemaining() && (data.get(data.position()) & Message.COMPRESSED) != 0) {
+				inflated = datagramCompressor.decompress(data, MAX_DATAGRAM_SIZE);
+				data = inflated;
+			}
+			onDatagram(Message.decode(data, this), source);
+		} catch (Message.CodecException e) {
+			LOG.debug("Dropped datagram from " + source + ": " + e.getMessage());
+		} finally {
+			// The payload is a slice of the buffer, valid only until here
+			if(inflated != null) {
+				bufferPool.release(inflated);
+			}
+		}
+	}
+
+	void onDatagram(Message msg, SocketAddress source) {
+		switch(msg.getType()) {
+			case APPLICATION_DATA_MESSAGE:
+				ApplicationDataMessage dataMsg = (ApplicationDataMessage) msg;
+				Party party = getParty(dataMsg.getPartyID());
+				if(party != null) {
+					party.onData(dataMsg, source);
+				}
+				break;
+
+			default:
+				LOG.debug("Unexpected " + msg.getType() + " datagram from " + source);
+		}
+	}
+
+	/**
+	 * Sends unreliable application data for a party to a peer's data port.
+	 * Datagrams reaching the compression threshold are compressed as frames
+	 * are, but there is no handshake to ask the receiver first.
+	 */
+	public void sendData(SocketAddress target, ApplicationDataMessage msg) throws IOException {
+		ByteBuffer buf = msg.encodeFrame(bufferPool);
+		try {
+			int threshold = compressionThreshold;
+			if(threshold > 0 && buf.remaining() >= threshold) {
+				ByteBuffer compressed = datagramCompressor.compress(buf, compressionLevel);
+				if(compressed != null) {
+					bufferPool.release(buf);
+					buf = compressed;
+				}
+			}
+			// Datagrams carry no length prefix
+			buf.position(buf.position() + FrameDecoder.HEADER_LENGTH);
+			dataChannel.send(buf, target);
+		} finally {
+			bufferPool.release(buf);
+		}
 	}
 
+	/**
+	 * Called when a peer's send queue crosses its high or low watermark.
+	 * Applications should stop producing for the peer while it is not writable.
+	 */
+	protected void onWritabilityChanged(PeerSession peer, boolean writable) {
+	}
 
-	//// TransportSession - UDP Data
+	/**
+	 * Sends a message to each of the peers. The message is encoded once, and
+	 * every peer's transport sends a view of the same buffer.
+	 */
+	public void multicast(Message msg, Iterable<PeerSession> peers) {
+		SharedBuffer frame = new SharedBuffer(msg.encodeFrame(bufferPool), bufferPool);
+		try {
+			for(PeerSession peer : peers) {
+				try {
+					peer.send(frame);
+				} catch (IOException e) {
+					LOG.error("Failed to send to " + peer.transport.getSocketAddress(), e);
+				}
+			}
+		} finally {
+			frame.release();
+		}
+	}
 
-	public void onReceive(ByteBuffer data) {
-		//To change body of implemented methods use File | Settings | File Templates.
+	/**
+	 * Sends a message to every connected member of the party, encoding it once.
+	 */
+	public void multicast(Message msg, Party party) {
+		SharedBuffer frame = new SharedBuffer(msg.encodeFrame(bufferPool), bufferPool);
+		try {
+			for(int i = 0, n = party.members.size(); i < n; i++) {
+				PeerSession peer = party.members.get(i).session;
+				if(peer == null) continue;
+				try {
+					peer.send(frame);
+				} catch (IOException e) {
+					LOG.error("Failed to send to " + peer.transport.getSocketAddress(), e);
+				}
+			}
+		} finally {
+			frame.release();
+		}
+	}
+
+
+	/**
+	 * Records the node a session is connected to, once it is known, and
+	 * indexes the session under it. Called when dialing a known node, and
+	 * again on either end when the peer's hello names it.
+	 */
+	public void bindNode(PeerSession peer, long nodeID) {
+		long old = peer.nodeID;
+		if(old != 0 && old != nodeID) {
+			peersByNode.remove(old, peer);
+		}
+		peer.nodeID = nodeID;
+		peersByNode.put(nodeID, peer);
+	}
+
+	/**
+	 * @return The session with the node, or null.
+	 */
+	public PeerSession getPeer(long nodeID) {
+		return peersByNode.get(nodeID);
 	}
 
-	public void onClose() {
-		//To change body of implemented methods use File | Settings | File Templates.
+	/**
+	 * @return The session with the remote address, or null.
+	 */
+	public PeerSession getPeer(SocketAddress address) {
+		return peers.get(address);
 	}
 
+	/**
+	 * @return A snapshot of the current sessions.
+	 */
+	public List<PeerSession> getPeers() {
+		return new ArrayList<PeerSession>(peers.values());
+	}
 
-	public Collection<Party> getParties() {
+	/**
+	 * @return A snapshot of the parties, unaffected by later changes.
+	 */
+	public List<Party> getParties() {
 		return parties.values();
 	}
 
@@ -125,8 +324,55 @@ public class PeerManager extends Manager implements Manager.Dispatcher, Transpor
 		parties.put(party.getID(), party);
 	}
 
+	public void removeParty(long partyID) {
+		parties.remove(partyID);
+	}
+
+	/**
+	 * In lazy mode, version 1 Details, MergeRequest and MergeConfirm
+	 * messages are decoded as views of their frame, and their members only
+	 * when asked for. Handlers that keep such a message must detach() it.
+	 */
+	public void setLazyDecoding(boolean lazy) {
+		lazyDecoding = lazy;
+	}
+
+	/**
+	 * Compresses frames sent to peers that accept it, once they reach the
+	 * threshold. Smaller frames rarely shrink enough to pay for the CPU.
+	 * Frames multicast to several peers are shared, so never compressed.
+	 * Datagrams from {@link #sendData} are compressed whenever this is
+	 * enabled, so only enable it where every node reading the data port
+	 * can inflate them.
+	 * @param threshold  Frame length in bytes; 0 disables compression
+	 * @param level      Deflater level, from BEST_SPEED to BEST_COMPRESSION
+	 */
+	public void setCompression(int threshold, int level) {
+		compressionLevel = level;
+		compressionThreshold = threshold;
+	}
+
+	/**
+	 * Registers the codec used to decode parties of the given format.
+	 */
+	public void registerPartyCodec(long partyFormatID, PartyCodec codec) {
+		partyCodecs.put(partyFormatID, codec);
+	}
+
+	/**
+	 * @return The codec registered for the format, or the default codec.
+	 */
 	public PartyCodec getPartyCodec(long partyFormatID) {
-		// TODO
-		return new PartyCodec();
+		PartyCodec codec = partyCodecs.get(partyFormatID);
+		return codec != null ? codec : defaultPartyCodec;
+	}
+
+	static long newNodeID() {
+		Random random = new Random();
+		long id;
+		do {
+			id = random.nextLong();
+		} while(id == 0);
+		return id;
 	}
 }
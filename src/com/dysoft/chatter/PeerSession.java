@@ -4,41 +4,106 @@ import com.dysoft.bones.StateMachine;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Sean Micklethwaite
  *         22-Aug-2010
  */
-public class PeerSession extends StateMachine<PeerSession.State> implements TransportSession {
+public class PeerSession extends StateMachine<PeerSession.State> implements TransportSession, Transport.WritabilityListener {
 	protected final static Logger LOG = Logger.getLogger(PeerSession.class);
 	static final int TIMEOUT = 3000;
 
 	final PeerManager manager;
 	final Transport transport;
+	final WireContext wire;
+	final FrameCompressor compressor;
+	volatile long nodeID = 0; //< Remote node, 0 until known
+	final LongMap<Party> joined = new LongMap<Party>(); //< Local parties that joined the peer's, by its party ID
+	long stateEntered = System.nanoTime();
 
 	public PeerSession(PeerManager manager, Transport transport) {
 		super(new NullState());
 		this.manager = manager;
 		this.transport = transport;
+		// Dropped frames would put the name dictionaries out of step
+		wire = new WireContext(manager.names, transport.getOverflowPolicy() == Manager.OverflowPolicy.CLOSE);
+		compressor = new FrameCompressor(manager.getBufferPool(), manager.metrics);
+		transport.setWritabilityListener(this);
+	}
+
+	/**
+	 * Records how long the session spent in the state it is leaving.
+	 */
+	@Override
+	public void setState(State state) {
+		long now = System.nanoTime();
+		if(manager != null) {
+			manager.metrics.stateExited(getState().getClass(), now - stateEntered);
+		}
+		stateEntered = now;
+		super.setState(state);
 	}
 
 	void startClient() {
+		sendHello();
 		setState(new ClientBeginState(getState()));
 	}
 
 	void startServer() {
+		sendHello();
 		setState(new ServerBeginState(getState()));
 	}
 
+	/**
+	 * Offers the newest wire format, accepts compressed messages, and says
+	 * which node this is; until the peer's offer arrives, messages are sent
+	 * in version 1, uncompressed.
+	 */
+	void sendHello() {
+		try {
+			send(new HelloMessage(Message.MAX_VERSION, HelloMessage.INFLATE, manager.getNodeID()));
+		} catch (IOException e) {
+			LOG.error("Failed to send hello", e);
+		}
+	}
+
 	public void onReceive(ByteBuffer data) {
+		ByteBuffer inflated = null;
 		try {
-			Message msg = Message.decode(data, manager);
-			LOG.debug("Received " + msg);
+			if(data.hasRemaining() && (data.get(data.position()) & Message.COMPRESSED) != 0) {
+				inflated = compressor.decompress(data, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+				data = inflated;
+			}
+			Message msg = Message.decode(data, manager, wire);
+			if(msg.getType() == Message.Type.HEARTBEAT) {
+				// Liveness is tracked by the transport
+				if(msg instanceof HelloMessage) {
+					HelloMessage hello = (HelloMessage) msg;
+					wire.negotiate(hello);
+					if(hello.getNodeID() != 0 && hello.getNodeID() != nodeID) {
+						manager.bindNode(this, hello.getNodeID());
+					}
+				}
+				return;
+			}
+			if(LOG.isDebugEnabled()) {
+				LOG.debug("Received " + msg);
+			}
 			msg.handle(getState());
 		} catch (Message.CodecException e) {
 			LOG.error("Message decode failed", e);
 			setState(new ClosingState("Message decode failed"));
+		} catch (BufferUnderflowException e) {
+			// A lazily decoded member overran its bounds in the handler
+			LOG.error("Message decode failed", e);
+			setState(new ClosingState("Message decode failed"));
+		} finally {
+			if(inflated != null) {
+				manager.getBufferPool().release(inflated);
+			}
 		}
 	}
 
@@ -47,18 +112,129 @@ public class PeerSession extends StateMachine<PeerSession.State> implements Tran
 	}
 
 	public void onClose() {
+		manager.removePeer(this);
+		compressor.end();
 		setState(new ClosedState());
 	}
 
+	/**
+	 * Encodes and sends under the wire context's lock, so frames go out in
+	 * the order their dictionary entries were made. Frames at or above the
+	 * manager's compression threshold are deflated, if the peer accepts it.
+	 */
 	protected void send(Message msg) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(msg.getEncodedLength());
-		msg.encode(buf);
-		buf.flip();
-		transport.send(buf);
+		synchronized (wire) {
+			BufferPool pool = manager.getBufferPool();
+			ByteBuffer frame = msg.encodeFrame(pool, wire);
+			int threshold = manager.compressionThreshold;
+			if(threshold > 0 && frame.remaining() >= threshold && wire.peerInflates) {
+				ByteBuffer compressed = compressor.compress(frame, manager.compressionLevel);
+				if(compressed != null) {
+					pool.release(frame);
+					frame = compressed;
+				}
+			}
+			transport.send(frame, msg.isUrgent());
+		}
+	}
+
+	/**
+	 * Sends an already encoded frame shared with other sessions. Shared
+	 * frames are encoded without a connection, so in version 1.
+	 */
+	protected void send(SharedBuffer frame) throws IOException {
+		transport.send(frame);
+	}
+
+	/**
+	 * @return The remote node's ID, or 0 if not yet known.
+	 */
+	public long getNodeID() {
+		return nodeID;
 	}
 
-	public void acceptParty(PartyMessage.Details details) {
+	/**
+	 * @return false while the peer's send queue is backed up.
+	 */
+	public boolean isWritable() {
+		return transport.isWritable();
+	}
 
+	/**
+	 * @return Bytes queued for the peer and not yet written.
+	 */
+	public int getQueuedBytes() {
+		return transport.getQueuedBytes();
+	}
+
+	public void onWritabilityChanged(Transport transport, boolean writable) {
+		LOG.debug("Peer " + transport.getSocketAddress() + (writable ? " writable" : " backed up"));
+		manager.onWritabilityChanged(this, writable);
+	}
+
+	/**
+	 * Applies a membership update from the leader of a party that a local
+	 * one joined through this session, and acknowledges the version now
+	 * held. The leader names its own party, which the joined one is filed
+	 * under here.
+	 */
+	protected void onDelta(PartyMessage.Delta msg) {
+		Party party = joined.get(msg.getPartyID());
+		if(party == null) return;
+		try {
+			send(new PartyMessage.Ack(msg.getPartyID(), party.applyDelta(msg)));
+		} catch (IOException e) {
+			LOG.error("Failed to acknowledge party update", e);
+		}
+	}
+
+	protected void onAck(PartyMessage.Ack msg) {
+		Party party = manager.getParty(msg.getPartyID());
+		if(party != null) {
+			party.acknowledged(this, msg.getVersion());
+		}
+	}
+
+	protected void onProbe(PartyMessage.Probe msg) {
+		Party party = manager.getParty(msg.getPartyID());
+		if(party instanceof GossipParty) {
+			((GossipParty) party).onProbe(this, msg);
+		}
+	}
+
+	/**
+	 * Tells the peer its request to merge into a local party was accepted,
+	 * by sending that party's details. The peer agrees with a MergeConfirm
+	 * naming the party, which is passed to {@link Party#confirmMerge}.
+	 * Called on the party's executor.
+	 */
+	public void acceptParty(Party party, PartyMessage.Details details) {
+		try {
+			send(party.createDetailsMessage());
+		} catch (IOException e) {
+			LOG.error("Failed to accept party " + details.getPartyID(), e);
+		}
+	}
+
+	/**
+	 * Asks the peer to merge a local party into one of its own, and waits
+	 * for the merge to be accepted and confirmed. Must be called on the
+	 * session's thread.
+	 */
+	public void requestMerge(Party party, long remotePartyID) {
+		try {
+			send(new PartyMessage.MergeRequest(0, party.getID(), remotePartyID, party.members));
+			setState(new JoinState(getState(), party, remotePartyID));
+		} catch (IOException e) {
+			LOG.error("Failed to request merge into party " + remotePartyID, e);
+		}
+	}
+
+	protected void onMergeConfirm(PartyMessage.MergeConfirm msg) {
+		Party party = manager.getParty(msg.getPartyID());
+		if(party != null) {
+			party.confirmMerge(this);
+		}
 	}
 
 
@@ -67,9 +243,42 @@ public class PeerSession extends StateMachine<PeerSession.State> implements Tran
 	public interface State extends StateMachine.State, PartyMessage.Handler {
 	}
 
-	class WaitState extends StateMachine.WaitState implements State {
+	/**
+	 * Moves to the timeout state if still active after TIMEOUT ms. The
+	 * timeout is delivered in order with the session's messages.
+	 */
+	class WaitState extends BaseState implements State {
+		final State timeoutState;
+		TimingWheel.Timeout timeout = null;
+
 		WaitState(State parent, State timeoutState) {
-			super(parent, timeoutState, TIMEOUT);
+			super(parent);
+			this.timeoutState = timeoutState;
+		}
+
+		@Override
+		public void enter(StateMachine.State oldState) {
+			super.enter(oldState);
+			timeout = transport.getTimer().schedule(new Manager.Task() {
+				public void run() {
+					transport.execute(new Runnable() {
+						public void run() {
+							if(getState().containsState(WaitState.this)) {
+								setState(timeoutState);
+							}
+						}
+					});
+				}
+			}, TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void exit(StateMachine.State newState) {
+			if(timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			super.exit(newState);
 		}
 
 		public void handle(Message msg) {
@@ -82,6 +291,19 @@ public class PeerSession extends StateMachine<PeerSession.State> implements Tran
 		}
 
 		public void handle(PartyMessage.MergeConfirm msg) {
+			onMergeConfirm(msg);
+		}
+
+		public void handle(PartyMessage.Delta msg) {
+			onDelta(msg);
+		}
+
+		public void handle(PartyMessage.Ack msg) {
+			onAck(msg);
+		}
+
+		public void handle(PartyMessage.Probe msg) {
+			onProbe(msg);
 		}
 	}
 
@@ -126,6 +348,63 @@ public class PeerSession extends StateMachine<PeerSession.State> implements Tran
 		ServerBeginState(State parent) {
 			super(parent, new ClosingState("Timeout waiting for party details"));
 		}
+
+		/**
+		 * Offers the first local party that could join the client's.
+		 */
+		@Override
+		public void handle(PartyMessage.Details msg) {
+			for(Party party : manager.getParties()) {
+				if(party.getID() != msg.getPartyID() && party.isPartyCompatible(msg)) {
+					requestMerge(party, msg.getPartyID());
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the peer to accept a local party into one of its own. The
+	 * accept is the remote party's details, agreed to with a MergeConfirm;
+	 * the leader's MergeConfirm with the merged membership then completes
+	 * the join. Falls back to the parent state if the peer goes quiet.
+	 */
+	class JoinState extends WaitState {
+		final Party party;
+		final long remotePartyID;
+		boolean agreed = false;
+
+		JoinState(State parent, Party party, long remotePartyID) {
+			super(parent, parent);
+			this.party = party;
+			this.remotePartyID = remotePartyID;
+		}
+
+		/**
+		 * Agrees to every accept, as the leader may also have sent its
+		 * details unprompted; it ignores agreements it was not waiting for.
+		 */
+		@Override
+		public void handle(PartyMessage.Details msg) {
+			if(msg.getPartyID() != remotePartyID) return;
+			try {
+				send(new PartyMessage.MergeConfirm(0, remotePartyID, party.members));
+				agreed = true;
+			} catch (IOException e) {
+				LOG.error("Failed to confirm merge into party " + remotePartyID, e);
+			}
+		}
+
+		@Override
+		public void handle(PartyMessage.MergeConfirm msg) {
+			if(msg.getPartyID() != remotePartyID) {
+				onMergeConfirm(msg);
+			} else if(agreed) {
+				joined.put(remotePartyID, party);
+				party.joinParty(msg);
+				setState((State)parent);
+			}
+		}
 	}
 
 	protected static class NullState extends StateMachine.NullState implements State {
@@ -140,6 +419,15 @@ public class PeerSession extends StateMachine<PeerSession.State> implements Tran
 
 		public void handle(PartyMessage.MergeConfirm msg) {
 		}
+
+		public void handle(PartyMessage.Delta msg) {
+		}
+
+		public void handle(PartyMessage.Ack msg) {
+		}
+
+		public void handle(PartyMessage.Probe msg) {
+		}
 	}
 
 	protected class ClosingState extends NullState implements State {
@@ -153,9 +441,12 @@ public class PeerSession extends StateMachine<PeerSession.State> implements Tran
 		public void enter(StateMachine.State newState) {
 			try {
 				LOG.info("Closing session: " + reason);
+				manager.removePeer(PeerSession.this);
 				transport.close();
 			} catch (IOException e) {
 				e.printStackTrace();
+			} finally {
+				compressor.end();
 			}
 		}
 	}
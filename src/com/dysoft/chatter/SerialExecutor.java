@@ -0,0 +1,64 @@
+package com.dysoft.chatter;
+
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on an
+ * underlying executor. Tasks never overlap, whichever threads they end up
+ * on, and each sees the effects of the ones before it; so a state machine
+ * only driven through one of these keeps a single writer.
+ */
+public class SerialExecutor implements Executor {
+	protected final static Logger LOG = Logger.getLogger(SerialExecutor.class);
+	static final int MAX_TASKS_PER_RUN = 64;
+
+	final Executor executor;
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Runs a batch of tasks, then hands over to a fresh run if more are
+	 * waiting, so one busy session cannot hog a pooled thread.
+	 */
+	final Runnable drain = new Runnable() {
+		public void run() {
+			for(int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+				Runnable task = tasks.poll();
+				if(task == null) break;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					LOG.error("Task failed", e);
+				}
+			}
+			scheduled.set(false);
+			schedule(); // Tasks added since the last poll
+		}
+	};
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	void schedule() {
+		if(!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(drain);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.dysoft.chatter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted pooled buffer, for sending the same encoded data to
+ * several transports. Each transport sends its own read-only view and holds
+ * a reference until the view is written; the buffer goes back to the pool
+ * when the last reference is released.
+ */
+public class SharedBuffer {
+	final ByteBuffer buffer;
+	final BufferPool pool;
+	final AtomicInteger refs = new AtomicInteger(1);
+
+	/**
+	 * @param buffer  Flipped buffer to share. The creator holds the first reference.
+	 * @param pool    Pool the buffer is returned to
+	 */
+	public SharedBuffer(ByteBuffer buffer, BufferPool pool) {
+		this.buffer = buffer;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return A new read-only view of the data, with its own position.
+	 */
+	public ByteBuffer view() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	public int remaining() {
+		return buffer.remaining();
+	}
+
+	public SharedBuffer retain() {
+		refs.incrementAndGet();
+		return this;
+	}
+
+	public void release() {
+		int n = refs.decrementAndGet();
+		if(n == 0) {
+			pool.release(buffer);
+		} else if(n < 0) {
+			throw new IllegalStateException("SharedBuffer released too many times");
+		}
+	}
+}
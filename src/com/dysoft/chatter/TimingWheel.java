@@ -0,0 +1,217 @@
+package com.dysoft.chatter;
+
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel, driven by a reactor thread. Each timeout is kept in
+ * the bucket for its deadline tick, in a doubly linked list, so arming and
+ * cancelling are O(1) however many timeouts are pending. Deadlines further
+ * away than one turn of the wheel stay in their bucket until their tick
+ * comes round.
+ *
+ * Timeouts may be armed and cancelled from any thread. Those armed from
+ * other threads are queued and moved into the wheel by the owner thread;
+ * cancels from other threads are marked and unlinked when the owner next
+ * visits the bucket. Tasks always run on the owner thread.
+ */
+public class TimingWheel {
+	protected final static Logger LOG = Logger.getLogger(TimingWheel.class);
+
+	final static int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+	final long tickNanos;
+	final Timeout[] buckets;
+	final int[] bucketSizes;
+	final int mask;
+	final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+	final Runnable wakeup;
+
+	volatile Thread owner = null;
+	long currentTick;
+	int size = 0;
+	boolean expiring = false;
+
+	public TimingWheel(long tick, TimeUnit unit, int numBuckets) {
+		this(tick, unit, numBuckets, null);
+	}
+
+	/**
+	 * @param tick       Resolution of the wheel
+	 * @param numBuckets Rounded up to a power of two
+	 * @param wakeup     Run when a timeout is armed from another thread, to
+	 *                   wake the owner if it is blocked; may be null
+	 */
+	public TimingWheel(long tick, TimeUnit unit, int numBuckets, Runnable wakeup) {
+		this.wakeup = wakeup;
+		tickNanos = unit.toNanos(tick);
+		int n = Integer.highestOneBit(Math.max(numBuckets - 1, 1)) << 1;
+		buckets = new Timeout[n];
+		bucketSizes = new int[n];
+		mask = n - 1;
+		currentTick = System.nanoTime() / tickNanos;
+	}
+
+	/**
+	 * Arms a timeout. The task runs on the owner thread, no earlier than the
+	 * delay and at most one tick later.
+	 */
+	public Timeout schedule(Manager.Task task, long delay, TimeUnit unit) {
+		long deadline = (System.nanoTime() + unit.toNanos(delay) + tickNanos - 1) / tickNanos;
+		Timeout timeout = new Timeout(task, deadline);
+		if(Thread.currentThread() == owner) {
+			insert(timeout);
+		} else {
+			incoming.add(timeout);
+			if(wakeup != null) {
+				wakeup.run();
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Runs every timeout that is due. Must be called on the owner thread.
+	 * @return Number of tasks run.
+	 */
+	public int expire() {
+		owner = Thread.currentThread();
+		transferIncoming();
+
+		long now = System.nanoTime() / tickNanos;
+		long from = currentTick;
+		if(now <= from) return 0;
+
+		// Advance first, so timeouts armed by the tasks below land in a later tick
+		currentTick = now;
+		int run = 0;
+		if(size > 0) {
+			long ticks = Math.min(now - from, buckets.length);
+			expiring = true;
+			try {
+				for(long tick = from + 1; tick <= from + ticks; tick++) {
+					run += expireBucket((int)(tick & mask), now);
+				}
+			} finally {
+				expiring = false;
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * @return Nanoseconds until the next occupied bucket is due, a lower bound
+	 * on the time to the next expiry; or -1 if nothing is pending.
+	 */
+	public long nextDelay() {
+		if(size == 0) return -1;
+		for(int i = 1; i <= buckets.length; i++) {
+			if(bucketSizes[(int)((currentTick + i) & mask)] > 0) {
+				return Math.max(0, (currentTick + i) * tickNanos - System.nanoTime());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Number of timeouts in the wheel, excluding any not yet
+	 * transferred from other threads.
+	 */
+	public int size() {
+		return size;
+	}
+
+	void transferIncoming() {
+		Timeout timeout;
+		while((timeout = incoming.poll()) != null) {
+			if(timeout.state.get() == PENDING) {
+				insert(timeout);
+			}
+		}
+	}
+
+	void insert(Timeout timeout) {
+		if(timeout.deadline <= currentTick) {
+			timeout.deadline = currentTick + 1;
+		}
+		int bucket = (int)(timeout.deadline & mask);
+		timeout.bucket = bucket;
+		timeout.next = buckets[bucket];
+		if(timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[bucket] = timeout;
+		bucketSizes[bucket]++;
+		size++;
+	}
+
+	void unlink(Timeout timeout) {
+		if(timeout.bucket < 0) return;
+		if(timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if(timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		bucketSizes[timeout.bucket]--;
+		size--;
+		timeout.prev = timeout.next = null;
+		timeout.bucket = -1;
+	}
+
+	int expireBucket(int bucket, long now) {
+		int run = 0;
+		Timeout timeout = buckets[bucket];
+		while(timeout != null) {
+			Timeout next = timeout.next;
+			int state = timeout.state.get();
+			if(state == CANCELLED) {
+				unlink(timeout);
+			} else if(timeout.deadline <= now && timeout.state.compareAndSet(PENDING, EXPIRED)) {
+				unlink(timeout);
+				try {
+					timeout.task.run();
+				} catch (Exception e) {
+					LOG.error("Timeout task failed", e);
+				}
+				run++;
+			}
+			timeout = next;
+		}
+		return run;
+	}
+
+	public class Timeout {
+		final Manager.Task task;
+		final AtomicInteger state = new AtomicInteger(PENDING);
+		long deadline;
+		int bucket = -1;
+		Timeout prev, next;
+
+		Timeout(Manager.Task task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false if the timeout had already run or been cancelled.
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(PENDING, CANCELLED)) return false;
+			if(Thread.currentThread() == owner && !expiring) {
+				unlink(this); // Otherwise unlinked when its bucket is next visited
+			}
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+}
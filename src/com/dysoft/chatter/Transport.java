@@ -9,7 +9,65 @@ import java.nio.ByteBuffer;
  *         Aug 14, 2010 5:49:12 PM
  */
 public interface Transport {
+	/**
+	 * Queues data for sending. The transport takes ownership of the buffer,
+	 * and releases it to the manager's buffer pool once written.
+	 */
 	void send(ByteBuffer data) throws IOException;
+
+	/**
+	 * As {@link #send(ByteBuffer)}, but if flush is false the data may be held
+	 * back for the transport's linger window and batched with later sends.
+	 */
+	void send(ByteBuffer data, boolean flush) throws IOException;
+
+	/**
+	 * Sends a read-only view of a shared buffer. The transport holds a
+	 * reference to the buffer until the view has been written.
+	 */
+	void send(SharedBuffer data) throws IOException;
 	void close() throws IOException;
 	SocketAddress getSocketAddress();
+
+	/**
+	 * @return false while the send queue is above its high watermark.
+	 * Producers should hold off sending until the transport becomes
+	 * writable again.
+	 */
+	boolean isWritable();
+
+	/**
+	 * @return Bytes queued and not yet written.
+	 */
+	int getQueuedBytes();
+
+	/**
+	 * @return What the transport does with sends once its queue is full.
+	 * Only CLOSE guarantees that every frame queued is delivered in order.
+	 */
+	Manager.OverflowPolicy getOverflowPolicy();
+
+	/**
+	 * Sets the listener told when the transport crosses its watermarks. It is
+	 * called from whichever thread caused the change, with the transport locked.
+	 */
+	void setWritabilityListener(WritabilityListener listener);
+
+	/**
+	 * @return Timer run by the thread that services this transport, for
+	 * timeouts that should fire in step with the transport's events.
+	 */
+	TimingWheel getTimer();
+
+	/**
+	 * Runs a task in order with the session's received data and close, on
+	 * the manager's dispatch executor if one is set. Otherwise runs it
+	 * inline, so it must be called on the transport's reactor thread, as
+	 * timer tasks are.
+	 */
+	void execute(Runnable task);
+
+	public interface WritabilityListener {
+		void onWritabilityChanged(Transport transport, boolean writable);
+	}
 }
@@ -0,0 +1,68 @@
+package com.dysoft.chatter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integers for the version 2 wire format: seven bits per
+ * byte, least significant first, with the top bit set on all but the last
+ * byte. Values that may be negative are zig-zag encoded first, so that
+ * small magnitudes stay short.
+ */
+public class Varint {
+	public static void putInt(ByteBuffer buf, int value) {
+		while((value & ~0x7f) != 0) {
+			buf.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	/**
+	 * @return Bytes putInt() writes for the value.
+	 */
+	public static int size(int value) {
+		int n = 1;
+		while((value & ~0x7f) != 0) {
+			value >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	public static int getInt(ByteBuffer buf) {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = buf.get();
+			value |= (b & 0x7f) << shift;
+			if(b >= 0) return value;
+		}
+		return value;
+	}
+
+	public static void putLong(ByteBuffer buf, long value) {
+		while((value & ~0x7fL) != 0) {
+			buf.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	public static long getLong(ByteBuffer buf) {
+		long value = 0;
+		for(int shift = 0; shift < 70; shift += 7) {
+			byte b = buf.get();
+			value |= (long)(b & 0x7f) << shift;
+			if(b >= 0) return value;
+		}
+		return value;
+	}
+
+	public static void putSignedInt(ByteBuffer buf, int value) {
+		putInt(buf, (value << 1) ^ (value >> 31));
+	}
+
+	public static int getSignedInt(ByteBuffer buf) {
+		int v = getInt(buf);
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
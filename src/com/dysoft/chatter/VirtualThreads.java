@@ -0,0 +1,56 @@
+package com.dysoft.chatter;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, where the JVM has them. Looked up by reflection so the
+ * library still builds and runs on JVMs without them.
+ */
+public class VirtualThreads {
+	protected final static Logger LOG = Logger.getLogger(VirtualThreads.class);
+
+	final static Method IS_VIRTUAL = lookup(Thread.class, "isVirtual");
+	final static Method NEW_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+	public static boolean isSupported() {
+		return NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * @return An executor that starts a virtual thread per task, or a cached
+	 * thread pool if virtual threads are not supported.
+	 */
+	public static ExecutorService newExecutor() {
+		if(NEW_EXECUTOR != null) {
+			try {
+				return (ExecutorService) NEW_EXECUTOR.invoke(null);
+			} catch (Exception e) {
+				LOG.warn("Failed to create virtual thread executor", e);
+			}
+		} else {
+			LOG.warn("Virtual threads not supported, using a thread pool");
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	public static boolean isVirtual(Thread thread) {
+		if(IS_VIRTUAL == null) return false;
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	static Method lookup(Class<?> c, String name) {
+		try {
+			return c.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.dysoft.chatter;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-connection state for the version 2 wire format: the version to send
+ * with, whether the peer accepts compressed messages, and the member name
+ * dictionaries for each direction.
+ *
+ * The first time a name is sent it goes over in full, and both ends give
+ * it the next index; after that it is sent as the index. Indices are never
+ * reused, and neither end adds names once MAX_NAMES are known. This relies
+ * on every frame encoded being delivered, in order, so messages must be
+ * encoded and sent under the context's lock, and the dictionary is only
+ * used on transports that close rather than drop data on overflow.
+ */
+public class WireContext {
+	public final static int MAX_NAMES = 4096;
+
+	volatile int version = Message.VERSION;
+	volatile boolean peerInflates = false;
+	final boolean useDictionary;
+	final NameCache cache;
+
+	final Map<String, Integer> sentNames = new HashMap<String, Integer>();
+	final List<NameCache.Entry> receivedNames = new ArrayList<NameCache.Entry>();
+
+	public WireContext(NameCache cache, boolean useDictionary) {
+		this.cache = cache;
+		this.useDictionary = useDictionary;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Called with the highest version the peer supports.
+	 */
+	void negotiate(int peerVersion) {
+		version = Math.max(Message.VERSION, Math.min(Message.MAX_VERSION, peerVersion));
+	}
+
+	/**
+	 * Negotiates from the peer's hello.
+	 */
+	void negotiate(HelloMessage hello) {
+		negotiate(hello.getMaxVersion());
+		peerInflates = hello.hasFlag(HelloMessage.INFLATE);
+	}
+
+	/**
+	 * Writes a member's name, as an index if the peer already has it, then
+	 * its application specific fields.
+	 */
+	void encodeMember(ByteBuffer buf, PartyMember member) {
+		Integer index = useDictionary ? sentNames.get(member.name) : null;
+		if(index != null) {
+			Varint.putInt(buf, (index << 1) | 1);
+		} else {
+			Varint.putInt(buf, member.nameBytes.length << 1);
+			buf.put(member.nameBytes);
+			if(useDictionary && sentNames.size() < MAX_NAMES) {
+				sentNames.put(member.name, sentNames.size());
+			}
+		}
+		Varint.putInt(buf, member.getExtraLength());
+		member.encodeExtra(buf);
+	}
+
+	PartyMember decodeMember(ByteBuffer buf, PartyCodec codec) throws Message.CodecException {
+		int ref = Varint.getInt(buf);
+		NameCache.Entry name;
+		if((ref & 1) != 0) {
+			int index = ref >>> 1;
+			if(index >= receivedNames.size()) {
+				throw new Message.CodecException("Unknown name index: " + index);
+			}
+			name = receivedNames.get(index);
+		} else {
+			int length = ref >>> 1;
+			if(length > buf.remaining()) throw new BufferUnderflowException();
+			name = cache.intern(buf, length);
+			if(receivedNames.size() < MAX_NAMES) {
+				receivedNames.add(name);
+			}
+		}
+
+		int extra = Varint.getInt(buf);
+		if(extra < 0 || extra > buf.remaining()) throw new BufferUnderflowException();
+		int end = buf.position() + extra;
+		PartyMember member = codec.decodePartyMember(name.name, name.bytes, buf, extra);
+		buf.position(end);
+		return member;
+	}
+}
@@ -0,0 +1,150 @@
+package com.dysoft.chatter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+	BufferPool pool;
+
+	@Before
+	public void setUp() {
+		pool = new BufferPool(2, 64 * 1024);
+	}
+
+	@Test
+	public void acquiresWholeSizeClasses() {
+		ByteBuffer buf = pool.acquire(300);
+		assertTrue(buf.isDirect());
+		assertEquals(512, buf.capacity());
+		assertEquals(512, buf.remaining());
+		assertEquals(256, pool.acquire(1).capacity());
+		assertEquals(768, pool.getOutstandingBytes());
+	}
+
+	@Test
+	public void reusesReleasedBuffers() {
+		ByteBuffer buf = pool.acquire(1000);
+		buf.putInt(7);
+		pool.release(buf);
+		assertEquals(0, pool.getOutstandingBytes());
+
+		ByteBuffer again = pool.acquire(1000);
+		assertSame(buf, again);
+		assertEquals(0, again.position());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+	}
+
+	@Test
+	public void ignoresSecondRelease() {
+		ByteBuffer buf = pool.acquire(256);
+		pool.release(buf);
+		pool.release(buf);
+		assertEquals(0, pool.getOutstandingBytes());
+
+		ByteBuffer a = pool.acquire(256), b = pool.acquire(256);
+		assertNotSame(a, b);
+	}
+
+	@Test
+	public void ignoresBuffersItDidNotHandOut() {
+		ByteBuffer buf = pool.acquire(256);
+		pool.release(ByteBuffer.allocate(256));
+		pool.release(ByteBuffer.allocateDirect(256));
+		pool.release(buf.duplicate());
+		pool.release(buf.slice());
+		assertEquals(256, pool.getOutstandingBytes());
+
+		pool.release(buf);
+		assertSame(buf, pool.acquire(256));
+		assertNotSame(buf, pool.acquire(256));
+	}
+
+	@Test
+	public void doesNotPoolOversizedBuffers() {
+		int size = (1 << BufferPool.MAX_SIZE_SHIFT) + 1;
+		ByteBuffer buf = pool.acquire(size);
+		assertEquals(size, buf.capacity());
+		pool.release(buf);
+		assertEquals(0, pool.getOutstandingBytes());
+		assertEquals(0, pool.slots.size);
+		assertNull(pool.slots.get(buf));
+		assertNotSame(buf, pool.acquire(size));
+	}
+
+	@Test
+	public void forgetsBuffersBeyondTheArena() {
+		List<ByteBuffer> held = new ArrayList<ByteBuffer>();
+		for(int i = 0; i < 1000; i++) {
+			held.add(pool.acquire(1024));
+		}
+		assertEquals(1000, pool.slots.size);
+		for(ByteBuffer buf : held) {
+			pool.release(buf);
+		}
+
+		// Two stay in this thread's cache, and 64 fill the arena
+		assertEquals(66, pool.slots.size);
+		assertEquals(64 * 1024, pool.getArenaBytes());
+		for(ByteBuffer buf : held) {
+			pool.release(buf);
+		}
+		assertEquals(0, pool.getOutstandingBytes());
+	}
+
+	@Test
+	public void neverHandsOutABufferTwice() throws Exception {
+		final int threads = 4, rounds = 20000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int t = 0; t < threads; t++) {
+			final int id = t;
+			workers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						ByteBuffer[] held = new ByteBuffer[4];
+						for(int i = 0; i < rounds; i++) {
+							int n = i % held.length;
+							if(held[n] != null) {
+								ByteBuffer buf = held[n];
+								assertEquals(id, buf.getInt(0));
+								assertEquals(i - held.length, buf.getInt(4));
+								pool.release(buf);
+								pool.release(buf); // Ignored
+							}
+							held[n] = pool.acquire(256 << (i % 3));
+							held[n].putInt(0, id).putInt(4, i);
+						}
+						for(ByteBuffer buf : held) {
+							pool.release(buf);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		for(Thread worker : workers) {
+			worker.start();
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		if(failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertEquals(0, pool.getOutstandingBytes());
+	}
+}
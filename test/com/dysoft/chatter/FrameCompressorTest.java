@@ -0,0 +1,191 @@
+package com.dysoft.chatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCompressorTest {
+	BufferPool pool;
+	FrameCompressor out, in;
+
+	@Before
+	public void setUp() {
+		pool = new BufferPool();
+		ManagerMetrics metrics = new ManagerMetrics(null);
+		out = new FrameCompressor(pool, metrics);
+		in = new FrameCompressor(pool, metrics);
+	}
+
+	@After
+	public void tearDown() {
+		out.end();
+		in.end();
+	}
+
+	/**
+	 * A frame with a version byte and the given body.
+	 */
+	static ByteBuffer frame(byte[] body) {
+		ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + 1 + body.length);
+		buf.putInt(1 + body.length);
+		buf.put(Message.MAX_VERSION);
+		buf.put(body);
+		buf.flip();
+		return buf;
+	}
+
+	static byte[] repetitive(int length) {
+		byte[] body = new byte[length];
+		for(int i = 0; i < length; i++) {
+			body[i] = (byte)"member-name-".charAt(i % 12);
+		}
+		return body;
+	}
+
+	/**
+	 * The message in a compressed frame, from its version byte.
+	 */
+	static ByteBuffer message(ByteBuffer compressed) {
+		ByteBuffer msg = compressed.duplicate();
+		assertEquals(msg.remaining() - FrameDecoder.HEADER_LENGTH, msg.getInt());
+		return msg;
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		byte[] body = repetitive(4000);
+		ByteBuffer compressed = out.compress(frame(body), Deflater.BEST_SPEED);
+		assertNotNull(compressed);
+		assertTrue(compressed.remaining() < 1000);
+
+		ByteBuffer msg = message(compressed);
+		assertTrue((msg.get(msg.position()) & Message.COMPRESSED) != 0);
+		ByteBuffer inflated = in.decompress(msg, 1 << 20);
+		assertEquals(Message.MAX_VERSION, inflated.get());
+		byte[] result = new byte[inflated.remaining()];
+		inflated.get(result);
+		assertEquals(new String(body, "US-ASCII"), new String(result, "US-ASCII"));
+		pool.release(compressed);
+		pool.release(inflated);
+	}
+
+	@Test
+	public void reusesStateAcrossFrames() throws Exception {
+		for(int i = 1; i <= 5; i++) {
+			byte[] body = repetitive(500 * i);
+			ByteBuffer compressed = out.compress(frame(body), 6);
+			ByteBuffer inflated = in.decompress(message(compressed), 1 << 20);
+			assertEquals(1 + body.length, inflated.remaining());
+			pool.release(compressed);
+			pool.release(inflated);
+		}
+	}
+
+	@Test
+	public void skipsIncompressibleFrames() {
+		byte[] body = new byte[2000];
+		new Random(1).nextBytes(body);
+		ByteBuffer frame = frame(body);
+		assertNull(out.compress(frame, 9));
+		assertEquals(0, frame.position());
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsOverlongLength() throws Exception {
+		ByteBuffer compressed = out.compress(frame(repetitive(4000)), 1);
+		in.decompress(message(compressed), 100);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsWrongLength() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		ByteBuffer good = message(out.compress(frame(repetitive(400)), 1));
+		buf.put(good.get());
+		Varint.getInt(good);
+		Varint.putInt(buf, 300); // The stream inflates to 400
+		buf.put(good);
+		buf.flip();
+		in.decompress(buf, 1 << 20);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsCorruptStream() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		buf.put((byte)(Message.MAX_VERSION | Message.COMPRESSED));
+		Varint.putInt(buf, 100);
+		for(int i = 0; i < 10; i++) {
+			buf.put((byte)0xff);
+		}
+		buf.flip();
+		in.decompress(buf, 1 << 20);
+	}
+
+	@Test
+	public void inflatesFramesLargerThanAChunk() throws Exception {
+		byte[] body = repetitive(10 * FrameCompressor.CHUNK + 7);
+		ByteBuffer compressed = out.compress(frame(body), 6);
+		ByteBuffer inflated = in.decompress(message(compressed), 1 << 20);
+		assertEquals(1 + body.length, inflated.remaining());
+		assertEquals(body[body.length - 1], inflated.get(body.length));
+		pool.release(compressed);
+		pool.release(inflated);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsTruncatedHeader() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(2);
+		buf.put((byte)(Message.MAX_VERSION | Message.COMPRESSED));
+		buf.put((byte)0x80); // Length continues past the end
+		buf.flip();
+		in.decompress(buf, 1 << 20);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsMissingLength() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1);
+		buf.put((byte)(Message.MAX_VERSION | Message.COMPRESSED));
+		buf.flip();
+		in.decompress(buf, 1 << 20);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsImplausibleRatio() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		buf.put((byte)(Message.MAX_VERSION | Message.COMPRESSED));
+		Varint.putInt(buf, 1 << 20);
+		buf.put(new byte[10]);
+		buf.flip();
+		in.decompress(buf, 1 << 24);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsTruncatedStream() throws Exception {
+		ByteBuffer msg = message(out.compress(frame(repetitive(4000)), 1));
+		msg.limit(msg.limit() - 4);
+		in.decompress(msg, 1 << 20);
+	}
+
+	@Test
+	public void sessionClosedLocallyEndsCompressor() throws Exception {
+		PeerManager manager = new PeerManager();
+		PeerSession session = new MemoryLinks().connect(manager, manager)[0];
+		session.close();
+		assertTrue(session.compressor.closed);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void rejectsAfterEnd() throws Exception {
+		ByteBuffer compressed = out.compress(frame(repetitive(400)), 1);
+		in.end();
+		in.decompress(message(compressed), 1 << 20);
+	}
+}
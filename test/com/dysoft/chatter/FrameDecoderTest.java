@@ -0,0 +1,168 @@
+package com.dysoft.chatter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest {
+	StubTransport transport;
+	Recorder session;
+	FrameDecoder decoder;
+
+	@Before
+	public void setUp() {
+		transport = new StubTransport();
+		session = new Recorder();
+		decoder = new FrameDecoder(transport, session, 1024);
+	}
+
+	static byte[] frame(int length, int fill) {
+		ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + length);
+		buf.putInt(length);
+		while(buf.hasRemaining()) {
+			buf.put((byte)fill);
+		}
+		return buf.array();
+	}
+
+	static byte[] concat(byte[]... parts) {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		for(byte[] p : parts) {
+			buf.put(p);
+		}
+		byte[] out = new byte[buf.position()];
+		buf.flip();
+		buf.get(out);
+		return out;
+	}
+
+	@Test
+	public void deliversWholeFrames() {
+		decoder.onReceive(ByteBuffer.wrap(concat(frame(3, 1), frame(0, 0), frame(5, 2))));
+		assertEquals(3, session.frames.size());
+		assertArrayEquals(new byte[] { 1, 1, 1 }, session.frames.get(0));
+		assertEquals(0, session.frames.get(1).length);
+		assertArrayEquals(new byte[] { 2, 2, 2, 2, 2 }, session.frames.get(2));
+		assertEquals(3, decoder.getFrames());
+	}
+
+	@Test
+	public void reassemblesFramesSplitAnywhere() {
+		byte[] stream = concat(frame(10, 7), frame(600, 8), frame(1, 9));
+		for(int i = 0; i < stream.length; i++) {
+			decoder.onReceive(ByteBuffer.wrap(stream, i, 1).slice());
+		}
+		assertEquals(3, session.frames.size());
+		assertEquals(10, session.frames.get(0).length);
+		assertEquals(600, session.frames.get(1).length);
+		assertEquals(8, session.frames.get(1)[599]);
+		assertArrayEquals(new byte[] { 9 }, session.frames.get(2));
+	}
+
+	@Test
+	public void holdsPartialFrame() {
+		byte[] f = frame(20, 3);
+		decoder.onReceive(ByteBuffer.wrap(f, 0, 10).slice());
+		assertTrue(session.frames.isEmpty());
+		decoder.onReceive(ByteBuffer.wrap(f, 10, f.length - 10).slice());
+		assertEquals(1, session.frames.size());
+	}
+
+	@Test
+	public void closesOnOversizedFrame() {
+		decoder.onReceive(ByteBuffer.wrap(concat(frame(2, 1), frame(1025, 0))));
+		assertEquals(1, session.frames.size());
+		assertTrue(transport.closed);
+		assertTrue(session.closed);
+
+		decoder.onReceive(ByteBuffer.wrap(frame(2, 1)));
+		assertEquals(1, session.frames.size());
+	}
+
+	@Test
+	public void closesOnNegativeLength() {
+		decoder.onReceive(ByteBuffer.wrap(new byte[] { (byte)0xff, 0, 0, 0, 1 }));
+		assertTrue(session.frames.isEmpty());
+		assertTrue(transport.closed);
+	}
+
+	@Test
+	public void closesOnBadLengthSplitAcrossReads() {
+		decoder.onReceive(ByteBuffer.wrap(new byte[] { 0, 1 }));
+		assertFalse(transport.closed);
+		decoder.onReceive(ByteBuffer.wrap(new byte[] { 0, 0 }));
+		assertTrue(transport.closed);
+	}
+
+	static class Recorder implements TransportSession {
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		boolean closed = false;
+
+		public void onReceive(ByteBuffer data) {
+			byte[] b = new byte[data.remaining()];
+			data.get(b);
+			frames.add(b);
+		}
+
+		public void onClose() {
+			closed = true;
+		}
+	}
+
+	static class StubTransport implements Transport {
+		final List<ByteBuffer> sent = new ArrayList<ByteBuffer>();
+		boolean closed = false;
+
+		public void send(ByteBuffer data) throws IOException {
+			sent.add(data);
+		}
+
+		public void send(ByteBuffer data, boolean flush) throws IOException {
+			sent.add(data);
+		}
+
+		public void send(SharedBuffer data) throws IOException {
+		}
+
+		public void close() throws IOException {
+			closed = true;
+		}
+
+		public SocketAddress getSocketAddress() {
+			return null;
+		}
+
+		public boolean isWritable() {
+			return true;
+		}
+
+		public int getQueuedBytes() {
+			return 0;
+		}
+
+		public Manager.OverflowPolicy getOverflowPolicy() {
+			return Manager.OverflowPolicy.CLOSE;
+		}
+
+		public void setWritabilityListener(WritabilityListener listener) {
+		}
+
+		public TimingWheel getTimer() {
+			return null;
+		}
+
+		public void execute(Runnable task) {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.dysoft.chatter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs small gossip parties over in-memory links. Periods are driven by
+ * the test; probe timeouts go on a wheel that is never expired, so no
+ * indirect probes are sent.
+ */
+public class GossipPartyTest {
+	final static long PARTY_ID = 42;
+	final static long PERIOD = 10;	//< ms
+
+	PeerManager manager;
+	MemoryLinks links;
+	final List<Member> party = new ArrayList<Member>();
+
+	@Before
+	public void setUp() throws Exception {
+		manager = new PeerManager();
+		links = new MemoryLinks();
+	}
+
+	/**
+	 * Starts the given number of members, each joining through the first.
+	 */
+	void start(int members) {
+		for(int i = 0; i < members; i++) {
+			Member member = new Member(i + 1);
+			member.setTiming(PERIOD, PERIOD / 2, TimeUnit.MILLISECONDS);
+			party.add(member);
+		}
+		party.get(0).start(null);
+		for(int i = 1; i < members; i++) {
+			party.get(i).start(party.get(i).getPeer(1));
+		}
+		links.run();
+	}
+
+	/**
+	 * Runs one protocol period on every live member.
+	 */
+	void period() {
+		for(Member member : party) {
+			if(!member.failed) member.tick();
+		}
+		links.run();
+	}
+
+	boolean converged(int size) {
+		for(Member member : party) {
+			if(!member.failed && member.members.size() != size) return false;
+		}
+		return true;
+	}
+
+	@Test
+	public void joinsReachEveryMember() {
+		start(8);
+		int periods = 0;
+		while(!converged(8)) {
+			assertTrue("No convergence", ++periods < 50);
+			period();
+		}
+		for(Member member : party) {
+			assertEquals(7, member.nodes.size());
+		}
+	}
+
+	@Test
+	public void silentMemberIsSuspectedThenRemoved() throws Exception {
+		start(4);
+		while(!converged(4)) {
+			period();
+		}
+
+		Member failed = party.get(3);
+		failed.fail();
+		long start = System.currentTimeMillis();
+		while(!converged(3)) {
+			assertTrue("Failed member never removed", System.currentTimeMillis() - start < 5000);
+			Thread.sleep(PERIOD);
+			period();
+		}
+		for(Member member : party) {
+			if(member == failed) continue;
+			assertEquals(-1, Party.indexOf(member.members, failed.me.name));
+			assertEquals(PartyMessage.Update.DEAD, member.nodes.get(failed.me.name).status);
+		}
+	}
+
+	@Test
+	public void refutesSuspicionOfItself() {
+		start(1);
+		Member member = party.get(0);
+		member.apply(new PartyMessage.Update(PartyMessage.Update.SUSPECT, 0, member.nodeID, member.me));
+		assertEquals(1, member.incarnation);
+		GossipParty.Rumour rumour = member.rumours.get(member.rumours.size() - 1);
+		assertEquals(PartyMessage.Update.ALIVE, rumour.update.status);
+		assertEquals(1, rumour.update.incarnation);
+	}
+
+	@Test
+	public void staleGossipCannotReviveTheDead() {
+		start(1);
+		Member member = party.get(0);
+		PartyMember other = new PartyMember("other");
+		member.apply(new PartyMessage.Update(PartyMessage.Update.ALIVE, 0, 99, other));
+		assertEquals(2, member.members.size());
+		member.apply(new PartyMessage.Update(PartyMessage.Update.DEAD, 0, 99, other));
+		assertEquals(1, member.members.size());
+
+		member.apply(new PartyMessage.Update(PartyMessage.Update.ALIVE, 0, 99, other));
+		assertEquals(1, member.members.size());
+		member.apply(new PartyMessage.Update(PartyMessage.Update.ALIVE, 1, 99, other));
+		assertEquals(2, member.members.size());
+		assertFalse(member.nodes.get("other").status == PartyMessage.Update.DEAD);
+	}
+
+	/**
+	 * A member of the simulated party, linked to others on first use.
+	 */
+	class Member extends GossipParty {
+		final Map<Long, PeerSession> peers = new HashMap<Long, PeerSession>();
+		boolean failed = false;
+
+		Member(long nodeID) {
+			super(GossipPartyTest.this.manager, PARTY_ID, new PartyMember("node-" + nodeID), nodeID);
+		}
+
+		@Override
+		TimingWheel.Timeout schedule(Manager.Task task, long delay) {
+			return links.timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		PeerSession getPeer(long nodeID) {
+			PeerSession session = peers.get(nodeID);
+			if(session == null) {
+				Member other = party.get((int)nodeID - 1);
+				MemoryLinks.End[] link = links.link(manager, manager);
+				session = new MemberSession(this, link[0], nodeID);
+				PeerSession back = new MemberSession(other, link[1], this.nodeID);
+				link[0].session = session;
+				link[1].session = back;
+				peers.put(nodeID, session);
+				other.peers.put(this.nodeID, back);
+			}
+			return session;
+		}
+
+		/**
+		 * Stops answering, and sending anything at all.
+		 */
+		void fail() {
+			failed = true;
+			for(PeerSession session : peers.values()) {
+				MemoryLinks.End end = (MemoryLinks.End) session.transport;
+				end.closed = true;
+				end.other.closed = true;
+			}
+		}
+	}
+
+	/**
+	 * A member's session to another, handing probes straight to the member.
+	 */
+	static class MemberSession extends PeerSession {
+		final Member member;
+
+		MemberSession(Member member, Transport transport, long remoteNodeID) {
+			super(member.manager, transport);
+			this.member = member;
+			nodeID = remoteNodeID;
+			setState(new NullState() {
+				@Override
+				public void handle(PartyMessage.Probe msg) {
+					onProbe(msg);
+				}
+			});
+		}
+
+		@Override
+		protected void onProbe(PartyMessage.Probe msg) {
+			member.onProbe(this, msg);
+		}
+	}
+}
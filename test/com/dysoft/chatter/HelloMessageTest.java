@@ -0,0 +1,71 @@
+package com.dysoft.chatter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HelloMessageTest {
+	static Message decode(int... bytes) throws Message.CodecException {
+		ByteBuffer buf = ByteBuffer.allocate(bytes.length);
+		for(int b : bytes) {
+			buf.put((byte)b);
+		}
+		buf.flip();
+		return Message.decode(buf, null);
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		HelloMessage hello = new HelloMessage(Message.MAX_VERSION, HelloMessage.INFLATE, 0x0123456789abcdefL);
+		ByteBuffer buf = ByteBuffer.allocate(hello.getEncodedLength());
+		hello.encode(buf);
+		assertEquals(0, buf.remaining());
+		buf.flip();
+
+		HelloMessage decoded = (HelloMessage) Message.decode(buf, null);
+		assertEquals(Message.MAX_VERSION, decoded.getMaxVersion());
+		assertTrue(decoded.hasFlag(HelloMessage.INFLATE));
+		assertEquals(0x0123456789abcdefL, decoded.getNodeID());
+	}
+
+	@Test
+	public void plainHeartbeat() throws Exception {
+		Message msg = decode(Message.VERSION, Message.Type.HEARTBEAT.tag);
+		assertSame(HelloMessage.HEARTBEAT, msg);
+	}
+
+	@Test
+	public void helloWithoutFlagsOrNodeID() throws Exception {
+		HelloMessage hello = (HelloMessage) decode(Message.VERSION, Message.Type.HEARTBEAT.tag, 2);
+		assertEquals(2, hello.getMaxVersion());
+		assertFalse(hello.hasFlag(HelloMessage.INFLATE));
+		assertEquals(0, hello.getNodeID());
+	}
+
+	@Test
+	public void truncatedNodeIDIsIgnored() throws Exception {
+		HelloMessage hello = (HelloMessage) decode(Message.VERSION, Message.Type.HEARTBEAT.tag, 2, 1, 7, 7, 7);
+		assertTrue(hello.hasFlag(HelloMessage.INFLATE));
+		assertEquals(0, hello.getNodeID());
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void truncatedHeader() throws Exception {
+		decode(Message.VERSION);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void unsupportedVersion() throws Exception {
+		decode(Message.MAX_VERSION + 1, Message.Type.HEARTBEAT.tag);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void unknownType() throws Exception {
+		decode(Message.VERSION, 0x7f);
+	}
+}
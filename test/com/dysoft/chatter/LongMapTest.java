@@ -0,0 +1,132 @@
+package com.dysoft.chatter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongMapTest {
+	final LongMap<String> map = new LongMap<String>();
+
+	@Test
+	public void putsAndGets() {
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(-1, "b"));
+		assertNull(map.put(Long.MIN_VALUE, "c"));
+		assertEquals("a", map.get(1));
+		assertEquals("b", map.get(-1));
+		assertEquals("c", map.get(Long.MIN_VALUE));
+		assertNull(map.get(2));
+		assertFalse(map.containsKey(0));
+		assertEquals(3, map.size());
+
+		assertEquals("a", map.put(1, "d"));
+		assertEquals("d", map.get(1));
+		assertEquals(3, map.size());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void rejectsNullValues() {
+		map.put(1, null);
+	}
+
+	@Test
+	public void removes() {
+		map.put(1, "a");
+		map.put(2, "b");
+		assertEquals("a", map.remove(1));
+		assertNull(map.remove(1));
+		assertNull(map.get(1));
+		assertFalse(map.remove(2, "x"));
+		assertTrue(map.remove(2, "b"));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void valuesAreASnapshot() {
+		map.put(1, "a");
+		map.put(2, "b");
+		List<String> values = map.values();
+		map.put(3, "c");
+		map.remove(1);
+
+		assertEquals(2, values.size());
+		assertTrue(values.contains("a") && values.contains("b"));
+		assertEquals(2, map.values().size());
+		assertTrue(map.values().contains("c"));
+	}
+
+	@Test
+	public void survivesChurn() {
+		for(int round = 0; round < 10; round++) {
+			for(long key = 0; key < 1000; key++) {
+				map.put(round * 1000 + key, "v" + key);
+			}
+			for(long key = 0; key < 1000; key++) {
+				if(key % 4 != 0) {
+					assertEquals("v" + key, map.remove(round * 1000 + key));
+				}
+			}
+		}
+		assertEquals(2500, map.size());
+		assertEquals(2500, map.values().size());
+		for(int round = 0; round < 10; round++) {
+			for(long key = 0; key < 1000; key++) {
+				assertEquals(key % 4 == 0 ? "v" + key : null, map.get(round * 1000 + key));
+			}
+		}
+		// Removed entries are cleared out as the table is rebuilt
+		assertTrue(map.used * 2 <= map.table.length());
+	}
+
+	@Test
+	public void readersNeverSeeAnotherKeysValue() throws Exception {
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> readers = new ArrayList<Thread>();
+		for(int t = 0; t < 3; t++) {
+			readers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						while(!done.get()) {
+							for(long key = 0; key < 256; key++) {
+								String value = map.get(key);
+								if(value != null) {
+									assertEquals(Long.toString(key), value);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		for(Thread reader : readers) {
+			reader.start();
+		}
+		for(int i = 0; i < 200000; i++) {
+			long key = (i * 31L) & 255;
+			if(map.containsKey(key)) {
+				map.remove(key);
+			} else {
+				map.put(key, Long.toString(key));
+			}
+		}
+		done.set(true);
+		for(Thread reader : readers) {
+			reader.join();
+		}
+		if(failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+}
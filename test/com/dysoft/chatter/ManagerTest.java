@@ -0,0 +1,309 @@
+package com.dysoft.chatter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a manager over loopback connections.
+ */
+public class ManagerTest {
+	Manager manager;
+	BufferPool pool;
+	int port;
+
+	@Before
+	public void setUp() throws Exception {
+		manager = new Manager(1) {};
+		pool = manager.getBufferPool();
+		port = freePort();
+	}
+
+	static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * A frame of the given size, filled with one byte.
+	 */
+	ByteBuffer frame(int size, int fill) {
+		ByteBuffer buf = pool.acquire(FrameDecoder.HEADER_LENGTH + size);
+		buf.putInt(size);
+		for(int i = 0; i < size; i++) {
+			buf.put((byte)fill);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Connects to the listener, and waits for the connection.
+	 */
+	Transport connect(TransportSession session) throws Exception {
+		Connector connector = new Connector(session);
+		manager.connect(new InetSocketAddress("127.0.0.1", port), connector);
+		Transport transport = connector.connected.poll(10, TimeUnit.SECONDS);
+		assertNotNull("Timed out connecting", transport);
+		return transport;
+	}
+
+	/**
+	 * Records the outcome of connects, handing each connection the given
+	 * session.
+	 */
+	static class Connector implements Manager.Dispatcher {
+		final TransportSession session;
+		final BlockingQueue<Transport> connected = new LinkedBlockingQueue<Transport>();
+		final BlockingQueue<IOException> failed = new LinkedBlockingQueue<IOException>();
+
+		Connector(TransportSession session) {
+			this.session = session;
+		}
+
+		public TransportSession accept(Transport channel) {
+			throw new UnsupportedOperationException();
+		}
+
+		public TransportSession onConnect(Transport channel) {
+			connected.add(channel);
+			return session;
+		}
+
+		public void onConnectFailed(Transport channel, IOException cause) {
+			failed.add(cause);
+		}
+	}
+
+	/**
+	 * Records the frames it receives, other than heartbeats.
+	 */
+	static class Recorder implements TransportSession {
+		final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<ByteBuffer>();
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		public void onReceive(ByteBuffer data) {
+			if(!data.hasRemaining()) return;
+			ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+			copy.put(data).flip();
+			frames.add(copy);
+		}
+
+		public void onClose() {
+			closed.countDown();
+		}
+
+		ByteBuffer next() throws InterruptedException {
+			ByteBuffer frame = frames.poll(10, TimeUnit.SECONDS);
+			assertNotNull("Timed out waiting for a frame", frame);
+			return frame;
+		}
+	}
+
+	/**
+	 * Accepts connections, giving each the next of the given sessions.
+	 */
+	void listen(final TransportSession... sessions) throws IOException {
+		final AtomicInteger next = new AtomicInteger();
+		manager.listen("127.0.0.1", port, new Manager.Dispatcher() {
+			public TransportSession accept(Transport channel) {
+				return sessions[next.getAndIncrement()];
+			}
+
+			public TransportSession onConnect(Transport channel) {
+				throw new UnsupportedOperationException();
+			}
+
+			public void onConnectFailed(Transport channel, IOException cause) {
+			}
+		});
+	}
+
+	@Test
+	public void handlerFailureClosesOnlyItsConnection() throws Exception {
+		Recorder faulty = new Recorder() {
+			@Override
+			public void onReceive(ByteBuffer data) {
+				if(data.hasRemaining()) throw new IllegalStateException("Handler bug");
+			}
+		};
+		Recorder healthy = new Recorder();
+		listen(faulty, healthy);
+
+		Recorder first = new Recorder();
+		connect(first).send(frame(8, 1));
+		assertTrue("Failed session not closed", faulty.closed.await(10, TimeUnit.SECONDS));
+		assertTrue("Peer of failed session not closed", first.closed.await(10, TimeUnit.SECONDS));
+
+		// The reactor that ran the failed handler still serves others
+		connect(new Recorder()).send(frame(8, 2));
+		assertEquals(2, healthy.next().get());
+	}
+
+	@Test
+	public void framesArriveInOrderWhenTheSocketFills() throws Exception {
+		Recorder receiver = new Recorder();
+		listen(receiver);
+		Transport transport = connect(new Recorder());
+
+		// Well past the socket buffers, so most are queued behind a partial write
+		for(int i = 0; i < 40; i++) {
+			transport.send(frame(100 * 1024 + i, i));
+		}
+		for(int i = 0; i < 40; i++) {
+			ByteBuffer frame = receiver.next();
+			assertEquals(100 * 1024 + i, frame.remaining());
+			assertEquals((byte)i, frame.get(0));
+			assertEquals((byte)i, frame.get(frame.limit() - 1));
+		}
+	}
+
+	@Test
+	public void writabilityFollowsTheWatermarks() throws Exception {
+		manager.setWatermarks(64 * 1024, 256 * 1024);
+		manager.setSendQueueLimit(64 * 1024 * 1024, Manager.OverflowPolicy.CLOSE);
+		final CountDownLatch holding = new CountDownLatch(1), resume = new CountDownLatch(1);
+		Recorder receiver = new Recorder() {
+			@Override
+			public void onReceive(ByteBuffer data) {
+				// Holds up the only reactor, so nothing queued is written
+				if(data.hasRemaining() && holding.getCount() > 0) {
+					holding.countDown();
+					try {
+						resume.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.onReceive(data);
+			}
+		};
+		listen(receiver);
+		Transport transport = connect(new Recorder());
+		final BlockingQueue<Boolean> changes = new LinkedBlockingQueue<Boolean>();
+		transport.setWritabilityListener(new Transport.WritabilityListener() {
+			public void onWritabilityChanged(Transport transport, boolean writable) {
+				changes.add(writable);
+			}
+		});
+
+		transport.send(frame(8, 0));
+		assertTrue("Receiver not reached", holding.await(10, TimeUnit.SECONDS));
+		int sent = 1;
+		while(transport.isWritable()) {
+			assertTrue("Never became unwritable", sent < 2000);
+			transport.send(frame(16 * 1024, sent++));
+		}
+		assertEquals(Boolean.FALSE, changes.poll(10, TimeUnit.SECONDS));
+		assertTrue(transport.getQueuedBytes() >= 256 * 1024);
+
+		resume.countDown();
+		assertEquals(Boolean.TRUE, changes.poll(10, TimeUnit.SECONDS));
+		assertTrue(transport.getQueuedBytes() <= 64 * 1024);
+		for(int i = 0; i < sent; i++) {
+			assertEquals((byte)i, receiver.next().get(0));
+		}
+		assertTrue(changes.isEmpty());
+	}
+
+	@Test
+	public void connectsBeyondTheLimitAreQueued() throws Exception {
+		Recorder[] accepted = { new Recorder(), new Recorder(), new Recorder() };
+		listen(accepted);
+		manager.setMaxPendingConnects(1);
+
+		Connector connector = new Connector(new Recorder());
+		for(int i = 0; i < accepted.length; i++) {
+			manager.connect(new InetSocketAddress("127.0.0.1", port), connector);
+		}
+		for(int i = 0; i < accepted.length; i++) {
+			assertNotNull("Timed out connecting", connector.connected.poll(10, TimeUnit.SECONDS));
+		}
+		assertTrue(connector.failed.isEmpty());
+		assertEquals(0, manager.getMetrics().getPendingConnects());
+	}
+
+	@Test
+	public void unresolvedAddressFailsTheConnect() throws Exception {
+		listen(new Recorder());
+		manager.setMaxPendingConnects(1);
+
+		Connector connector = new Connector(new Recorder());
+		manager.connect(InetSocketAddress.createUnresolved("unresolved.invalid", port), connector);
+		IOException cause = connector.failed.poll(10, TimeUnit.SECONDS);
+		assertNotNull("Connect not failed", cause);
+		assertTrue(cause.getCause() instanceof UnresolvedAddressException);
+
+		// Its slot was freed for the next
+		connect(new Recorder());
+		assertEquals(0, manager.getMetrics().getPendingConnects());
+	}
+
+	@Test
+	public void dispatcherFailureClosesTheConnection() throws Exception {
+		listen(new Recorder(), new Recorder());
+		manager.setMaxPendingConnects(1);
+
+		final BlockingQueue<Manager.SocketTransport> dialed = new LinkedBlockingQueue<Manager.SocketTransport>();
+		Connector connector = new Connector(null) {
+			@Override
+			public TransportSession onConnect(Transport channel) {
+				dialed.add((Manager.SocketTransport) channel);
+				throw new IllegalStateException("Dispatcher bug");
+			}
+		};
+		manager.connect(new InetSocketAddress("127.0.0.1", port), connector);
+		Manager.SocketTransport transport = dialed.poll(10, TimeUnit.SECONDS);
+		assertNotNull("Dispatcher not called", transport);
+
+		// Its slot was freed for the next, which runs after the close
+		connect(new Recorder());
+		assertFalse("Channel left open", transport.channel.isOpen());
+		assertTrue("Connect reported failed after connecting", connector.failed.isEmpty());
+		assertEquals(0, manager.getMetrics().getPendingConnects());
+	}
+
+	@Test
+	public void registrationFailureClosesTheSession() throws Exception {
+		listen(new Recorder(), new Recorder());
+		manager.setMaxPendingConnects(1);
+
+		Recorder session = new Recorder();
+		Connector connector = new Connector(session) {
+			@Override
+			public TransportSession onConnect(Transport channel) {
+				try {
+					((Manager.SocketTransport) channel).channel.close();
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+				return super.onConnect(channel);
+			}
+		};
+		manager.connect(new InetSocketAddress("127.0.0.1", port), connector);
+		assertTrue("Session not closed", session.closed.await(10, TimeUnit.SECONDS));
+
+		connect(new Recorder());
+		assertTrue("Connect reported failed after connecting", connector.failed.isEmpty());
+		assertEquals(0, manager.getMetrics().getPendingConnects());
+	}
+}
@@ -0,0 +1,126 @@
+package com.dysoft.chatter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions joined by in-memory links, so tests can run both ends in one
+ * thread. Frames are queued as they are sent and delivered by run(), in
+ * order. Timeouts go on a wheel that only expires when told to.
+ */
+class MemoryLinks {
+	final TimingWheel timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 512);
+	final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+	final ArrayDeque<TransportSession> to = new ArrayDeque<TransportSession>();
+	int ends = 0;
+
+	/**
+	 * @return Two ends of a new link, to be attached to sessions of the
+	 * given managers.
+	 */
+	End[] link(PeerManager atA, PeerManager atB) {
+		End a = new End(atA), b = new End(atB);
+		a.other = b;
+		b.other = a;
+		return new End[] { a, b };
+	}
+
+	/**
+	 * Joins two new sessions to each other.
+	 */
+	PeerSession[] connect(PeerManager atA, PeerManager atB) {
+		End[] link = link(atA, atB);
+		PeerSession a = new PeerSession(atA, link[0]);
+		PeerSession b = new PeerSession(atB, link[1]);
+		link[0].session = a;
+		link[1].session = b;
+		return new PeerSession[] { a, b };
+	}
+
+	/**
+	 * Delivers queued frames, and any sent in reply, until none are left.
+	 * @return Frames delivered.
+	 */
+	int run() {
+		int n = 0;
+		ByteBuffer frame;
+		while((frame = frames.poll()) != null) {
+			to.poll().onReceive(frame);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * One end of a link. Frames sent on it go to the session at the other end.
+	 */
+	class End implements Transport {
+		final SocketAddress address = InetSocketAddress.createUnresolved("memory", ends++ & 0xffff);
+		final PeerManager manager;
+		TransportSession session;
+		End other;
+		boolean closed = false;
+
+		End(PeerManager manager) {
+			this.manager = manager;
+		}
+
+		void queue(ByteBuffer view) {
+			ByteBuffer frame = ByteBuffer.allocate(view.remaining() - FrameDecoder.HEADER_LENGTH);
+			view.position(view.position() + FrameDecoder.HEADER_LENGTH);
+			frame.put(view).flip();
+			if(!closed) {
+				frames.add(frame);
+				to.add(other.session);
+			}
+		}
+
+		public void send(ByteBuffer data) throws IOException {
+			send(data, true);
+		}
+
+		public void send(ByteBuffer data, boolean flush) throws IOException {
+			queue(data.duplicate());
+			manager.getBufferPool().release(data);
+		}
+
+		public void send(SharedBuffer data) throws IOException {
+			queue(data.view());
+		}
+
+		public void close() throws IOException {
+			closed = true;
+		}
+
+		public SocketAddress getSocketAddress() {
+			return address;
+		}
+
+		public boolean isWritable() {
+			return true;
+		}
+
+		public int getQueuedBytes() {
+			return 0;
+		}
+
+		public Manager.OverflowPolicy getOverflowPolicy() {
+			return Manager.OverflowPolicy.CLOSE;
+		}
+
+		public void setWritabilityListener(WritabilityListener listener) {
+		}
+
+		public TimingWheel getTimer() {
+			return timer;
+		}
+
+		public void execute(Runnable task) {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.dysoft.chatter;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PartyMessageTest {
+	static PeerManager manager;
+
+	@BeforeClass
+	public static void setUpManager() throws Exception {
+		manager = new PeerManager();
+	}
+
+	static List<PartyMember> members(String... names) {
+		List<PartyMember> list = new ArrayList<PartyMember>();
+		for(String name : names) {
+			list.add(new PartyMember(name));
+		}
+		return list;
+	}
+
+	static List<String> names(List<PartyMember> members) {
+		List<String> list = new ArrayList<String>();
+		for(PartyMember m : members) {
+			list.add(m.name);
+		}
+		return list;
+	}
+
+	/**
+	 * Encodes a message in version 1, without its frame header.
+	 */
+	static ByteBuffer encode(Message msg) {
+		ByteBuffer buf = ByteBuffer.allocate(msg.getEncodedLength());
+		msg.encode(buf);
+		buf.flip();
+		return buf;
+	}
+
+	static PartyMessage.Probe probe(PartyMessage.Update... updates) {
+		return new PartyMessage.Probe(PartyMessage.Type.PING_REQ, 0, 42, 7, 100, 200, Arrays.asList(updates));
+	}
+
+	@Test
+	public void probeRoundTrip() throws Exception {
+		PartyMessage.Probe msg = (PartyMessage.Probe) Message.decode(encode(probe(
+				new PartyMessage.Update(PartyMessage.Update.ALIVE, 1, 11, new PartyMember("alice")),
+				new PartyMessage.Update(PartyMessage.Update.SUSPECT, 3, 12, new PartyMember("bob")))), manager);
+		assertEquals(PartyMessage.Type.PING_REQ, msg.getProbeType());
+		assertEquals(42, msg.getPartyID());
+		assertEquals(7, msg.getSeq());
+		assertEquals(100, msg.getFrom());
+		assertEquals(200, msg.getTarget());
+		assertEquals(2, msg.getUpdates().size());
+		PartyMessage.Update bob = msg.getUpdates().get(1);
+		assertEquals(PartyMessage.Update.SUSPECT, bob.getStatus());
+		assertEquals(3, bob.getIncarnation());
+		assertEquals(12, bob.getNodeID());
+		assertEquals("bob", bob.getMember().name);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void probeTruncated() throws Exception {
+		ByteBuffer buf = encode(probe(new PartyMessage.Update(PartyMessage.Update.DEAD, 1, 11, new PartyMember("alice"))));
+		buf.limit(buf.limit() - 1);
+		Message.decode(buf, manager);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void probeNegativeUpdateCount() throws Exception {
+		ByteBuffer buf = encode(probe());
+		buf.putInt(buf.limit() - 4, -1);
+		Message.decode(buf, manager);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void probeMemberNameOverrunsMember() throws Exception {
+		ByteBuffer buf = encode(probe(
+				new PartyMessage.Update(PartyMessage.Update.ALIVE, 1, 11, new PartyMember("a")),
+				new PartyMessage.Update(PartyMessage.Update.ALIVE, 1, 12, new PartyMember("bob"))));
+		// First member's name length, after the header, probe fields and update fields
+		buf.putInt(3 + 40 + 17, 2);
+		Message.decode(buf, manager);
+	}
+
+	@Test
+	public void detailsRoundTrip() throws Exception {
+		PartyMessage.Details msg = (PartyMessage.Details) Message.decode(
+				encode(new PartyMessage.Details(5, 42, members("alice", "bob"))), manager);
+		assertEquals(5, msg.getPartyFormatID());
+		assertEquals(42, msg.getPartyID());
+		assertEquals(Arrays.asList("alice", "bob"), names(msg.getMembers()));
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void detailsNegativeMemberCount() throws Exception {
+		ByteBuffer buf = encode(new PartyMessage.Details(5, 42, members()));
+		buf.putInt(buf.limit() - 4, -1);
+		Message.decode(buf, manager);
+	}
+
+	@Test
+	public void detailsVersion2UsesDictionary() throws Exception {
+		WireContext out = new WireContext(new NameCache(16), true);
+		WireContext in = new WireContext(new NameCache(16), true);
+		out.negotiate(Message.MAX_VERSION);
+		in.negotiate(Message.MAX_VERSION);
+		PartyMessage.Details details = new PartyMessage.Details(5, 42, members("alice", "bob"));
+
+		ByteBuffer first = details.encodeFrame(manager.getBufferPool(), out);
+		ByteBuffer second = details.encodeFrame(manager.getBufferPool(), out);
+		try {
+			assertEquals(Message.MAX_VERSION, first.get(FrameDecoder.HEADER_LENGTH));
+			assertEquals(first.remaining() - "alicebob".length(), second.remaining());
+			for(ByteBuffer frame : new ByteBuffer[] { first, second }) {
+				frame.position(FrameDecoder.HEADER_LENGTH);
+				PartyMessage.Details msg = (PartyMessage.Details) Message.decode(frame, manager, in);
+				assertEquals(42, msg.getPartyID());
+				assertEquals(Arrays.asList("alice", "bob"), names(msg.getMembers()));
+			}
+		} finally {
+			manager.getBufferPool().release(first);
+			manager.getBufferPool().release(second);
+		}
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void detailsVersion2NeedsContext() throws Exception {
+		WireContext out = new WireContext(new NameCache(16), true);
+		out.negotiate(Message.MAX_VERSION);
+		ByteBuffer frame = new PartyMessage.Details(5, 42, members("alice")).encodeFrame(manager.getBufferPool(), out);
+		frame.position(FrameDecoder.HEADER_LENGTH);
+		Message.decode(frame, manager);
+	}
+
+	@Test
+	public void lazyDetailsDecodeOnDemand() throws Exception {
+		manager.setLazyDecoding(true);
+		try {
+			PartyMessage.Details msg = (PartyMessage.Details) Message.decode(
+					encode(new PartyMessage.Details(5, 42, members("alice", "bob"))), manager);
+			assertEquals(42, msg.getPartyID());
+			assertEquals(2, msg.getMemberCount());
+			Iterator<PartyMessage.Details.MemberView> views = msg.memberViews();
+			assertEquals("alice", views.next().getName());
+			assertEquals("bob", views.next().toMember().name);
+			msg.detach();
+			assertEquals(Arrays.asList("alice", "bob"), names(msg.getMembers()));
+		} finally {
+			manager.setLazyDecoding(false);
+		}
+	}
+
+	@Test
+	public void lazyDetailsKeepMembersInBounds() throws Exception {
+		ByteBuffer buf = encode(new PartyMessage.Details(5, 42, members("alice", "bob")));
+		// First member's name length, after its size field
+		buf.putInt(3 + 20 + 4, 6);
+		manager.setLazyDecoding(true);
+		try {
+			PartyMessage.Details msg = (PartyMessage.Details) Message.decode(buf, manager);
+			try {
+				msg.memberViews().next().getName();
+				fail("Name read past its member");
+			} catch (BufferUnderflowException e) {
+			}
+			try {
+				msg.getMembers();
+				fail("Member decoded past its end");
+			} catch (BufferUnderflowException e) {
+			}
+		} finally {
+			manager.setLazyDecoding(false);
+		}
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void lazyDetailsMemberSizeOverrunsFrame() throws Exception {
+		ByteBuffer buf = encode(new PartyMessage.Details(5, 42, members("alice")));
+		buf.putInt(3 + 20, 100);
+		manager.setLazyDecoding(true);
+		try {
+			Message.decode(buf, manager);
+		} finally {
+			manager.setLazyDecoding(false);
+		}
+	}
+
+	@Test
+	public void mergeConfirmCarriesVersion() throws Exception {
+		PartyMessage.MergeConfirm msg = (PartyMessage.MergeConfirm) Message.decode(
+				encode(new PartyMessage.MergeConfirm(5, 42, members("alice"), 9)), manager);
+		assertEquals(Arrays.asList("alice"), names(msg.getMembers()));
+		assertEquals(9, msg.getVersion());
+
+		WireContext context = new WireContext(new NameCache(16), false);
+		context.negotiate(Message.MAX_VERSION);
+		ByteBuffer frame = new PartyMessage.MergeConfirm(5, 42, members("alice"), 9).encodeFrame(manager.getBufferPool(), context);
+		try {
+			frame.position(FrameDecoder.HEADER_LENGTH);
+			msg = (PartyMessage.MergeConfirm) Message.decode(frame, manager, context);
+			assertEquals(9, msg.getVersion());
+		} finally {
+			manager.getBufferPool().release(frame);
+		}
+	}
+
+	@Test
+	public void mergeConfirmWithoutVersion() throws Exception {
+		ByteBuffer buf = encode(new PartyMessage.MergeConfirm(5, 42, members("alice"), 9));
+		buf.limit(buf.limit() - 4);
+		PartyMessage.MergeConfirm msg = (PartyMessage.MergeConfirm) Message.decode(buf, manager);
+		assertEquals(Arrays.asList("alice"), names(msg.getMembers()));
+		assertEquals(PartyMessage.MergeConfirm.NO_VERSION, msg.getVersion());
+	}
+
+	@Test
+	public void deltaRoundTrip() throws Exception {
+		List<PartyMessage.Change> changes = new ArrayList<PartyMessage.Change>();
+		changes.add(new PartyMessage.Change(true, new PartyMember("alice")));
+		changes.add(new PartyMessage.Change(false, new PartyMember("bob")));
+		PartyMessage.Delta msg = (PartyMessage.Delta) Message.decode(
+				encode(new PartyMessage.Delta(5, 42, 3, 5, changes)), manager);
+		assertEquals(42, msg.getPartyID());
+		assertEquals(3, msg.getBaseVersion());
+		assertEquals(5, msg.getVersion());
+		assertEquals(2, msg.getChanges().size());
+		assertEquals(false, msg.getChanges().get(1).isAdded());
+		assertEquals("bob", msg.getChanges().get(1).getMember().name);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void deltaNegativeChangeCount() throws Exception {
+		ByteBuffer buf = encode(new PartyMessage.Delta(5, 42, 3, 3, new ArrayList<PartyMessage.Change>()));
+		buf.putInt(buf.limit() - 4, -1);
+		Message.decode(buf, manager);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void deltaChangeCountOverrunsFrame() throws Exception {
+		ByteBuffer buf = encode(new PartyMessage.Delta(5, 42, 3, 3, new ArrayList<PartyMessage.Change>()));
+		buf.putInt(buf.limit() - 4, 1000000);
+		Message.decode(buf, manager);
+	}
+
+	@Test
+	public void ackRoundTrip() throws Exception {
+		PartyMessage.Ack msg = (PartyMessage.Ack) Message.decode(encode(new PartyMessage.Ack(42, 9)), manager);
+		assertEquals(42, msg.getPartyID());
+		assertEquals(9, msg.getVersion());
+	}
+
+	@Test
+	public void handshakeMessagesReachTheirHandlers() throws Exception {
+		final List<String> handled = new ArrayList<String>();
+		PartyMessage.Handler handler = new PartyMessage.Handler() {
+			public void handle(Message msg) {
+				handled.add("message");
+			}
+
+			public void handle(PartyMessage.Details msg) {
+				handled.add("details");
+			}
+
+			public void handle(PartyMessage.MergeRequest msg) {
+				handled.add("request");
+			}
+
+			public void handle(PartyMessage.MergeConfirm msg) {
+				handled.add("confirm");
+			}
+
+			public void handle(PartyMessage.Delta msg) {
+			}
+
+			public void handle(PartyMessage.Ack msg) {
+			}
+
+			public void handle(PartyMessage.Probe msg) {
+			}
+		};
+		Message.decode(encode(new PartyMessage.Details(0, 42, members("alice"))), manager).handle(handler);
+		Message.decode(encode(new PartyMessage.MergeRequest(0, 42, 7, members("alice"))), manager).handle(handler);
+		Message.decode(encode(new PartyMessage.MergeConfirm(0, 42, members("alice"))), manager).handle(handler);
+		assertEquals(Arrays.asList("details", "request", "confirm"), handled);
+	}
+}
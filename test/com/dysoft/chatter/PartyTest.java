@@ -0,0 +1,165 @@
+package com.dysoft.chatter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartyTest {
+	PeerManager leaderManager, joinerManager;
+	MemoryLinks links;
+	Party leader, joiner;
+	final List<PartyMessage.Delta> deltas = new ArrayList<PartyMessage.Delta>(); //< Received by the joiner
+
+	@Before
+	public void setUp() throws Exception {
+		leaderManager = new PeerManager();
+		joinerManager = new PeerManager();
+		links = new MemoryLinks();
+		leader = new Party(1, new PartyMember("leader"));
+		joiner = new Party(2, new PartyMember("joiner"));
+		leaderManager.setParty(leader);
+		joinerManager.setParty(joiner);
+	}
+
+	/**
+	 * Links the leader to the joiner as if the leader had dialed it, and
+	 * runs the handshake through to the merge.
+	 */
+	void merge() {
+		link(joinerManager, true);
+		links.run();
+	}
+
+	/**
+	 * Links the leader to a joiner as if the leader had dialed it, and
+	 * starts the handshake.
+	 * @param agrees  False if the joiner never agrees to the leader's accept
+	 */
+	void link(PeerManager joinerManager, boolean agrees) {
+		MemoryLinks.End[] link = links.link(leaderManager, joinerManager);
+		PeerSession atLeader = new PeerSession(leaderManager, link[0]);
+		PeerSession atJoiner = agrees
+				? new RecordingSession(joinerManager, link[1])
+				: new SilentSession(joinerManager, link[1]);
+		link[0].session = atLeader;
+		link[1].session = atJoiner;
+		atJoiner.setState(atJoiner.new ServerBeginState(atJoiner.getState()));
+		atLeader.setState(atLeader.new ClientBeginState(atLeader.getState()));
+	}
+
+	/**
+	 * A manager with a party of its own to join the leader's.
+	 */
+	PeerManager joinerManager(String name) throws IOException {
+		PeerManager manager = new PeerManager();
+		manager.setParty(new Party(joiner.getID(), new PartyMember(name)));
+		return manager;
+	}
+
+	/**
+	 * Records the deltas it receives.
+	 */
+	class RecordingSession extends PeerSession {
+		RecordingSession(PeerManager manager, Transport transport) {
+			super(manager, transport);
+		}
+
+		@Override
+		protected void onDelta(PartyMessage.Delta msg) {
+			deltas.add(msg);
+			super.onDelta(msg);
+		}
+	}
+
+	/**
+	 * Never agrees to a merge.
+	 */
+	static class SilentSession extends PeerSession {
+		SilentSession(PeerManager manager, Transport transport) {
+			super(manager, transport);
+		}
+
+		@Override
+		protected void send(Message msg) throws IOException {
+			if(!(msg instanceof PartyMessage.MergeConfirm)) super.send(msg);
+		}
+	}
+
+	static int ackedVersion(Party party, String name) {
+		return party.members.get(Party.indexOf(party.members, name)).ackedVersion;
+	}
+
+	@Test
+	public void mergeConfirmBringsJoinerUpToDate() {
+		merge();
+		assertEquals(2, leader.members.size());
+		assertEquals(2, joiner.members.size());
+		assertEquals(leader.getVersion(), joiner.getVersion());
+		assertEquals(leader.getVersion(), ackedVersion(leader, "joiner"));
+		assertTrue("Snapshot sent after the MergeConfirm", deltas.isEmpty());
+	}
+
+	@Test
+	public void laterChangesGoOutAsDeltasAndAreAcked() {
+		merge();
+		leader.addMember(new PartyMember("carol"));
+		leader.sendUpdates();
+		links.run();
+		leader.removeMember(new PartyMember("carol"));
+		leader.addMember(new PartyMember("dave"));
+		leader.sendUpdates();
+		links.run();
+
+		assertEquals(2, deltas.size());
+		for(PartyMessage.Delta delta : deltas) {
+			assertFalse(delta.isSnapshot());
+			assertEquals(leader.getID(), delta.getPartyID());
+		}
+		assertEquals(1, deltas.get(0).getChanges().size());
+		assertEquals(2, deltas.get(1).getChanges().size());
+		assertEquals(leader.getVersion(), joiner.getVersion());
+		assertEquals(3, joiner.members.size());
+		assertTrue(Party.indexOf(joiner.members, "dave") >= 0);
+		assertEquals(-1, Party.indexOf(joiner.members, "carol"));
+		assertEquals(leader.getVersion(), ackedVersion(leader, "joiner"));
+	}
+
+	@Test
+	public void timedOutRoundCommitsPeersThatAgreed() throws Exception {
+		// A round no one agrees to holds the leader while two more ask
+		link(joinerManager("silent"), false);
+		links.run();
+		link(joinerManager, true);
+		link(joinerManager("late"), false);
+		links.run();
+		assertEquals(1, leader.members.size());
+
+		((Party.MergeRequestState) leader.getState()).timedOut();
+		links.run();
+		assertTrue(leader.getState() instanceof Party.MergeRequestState);
+		((Party.MergeRequestState) leader.getState()).timedOut();
+		links.run();
+
+		assertFalse(leader.getState() instanceof Party.MergeRequestState);
+		assertEquals(2, leader.members.size());
+		assertTrue(Party.indexOf(leader.members, "joiner") >= 0);
+		assertEquals(2, joiner.members.size());
+		assertEquals(leader.getVersion(), joiner.getVersion());
+		assertEquals(leader.getVersion(), ackedVersion(leader, "joiner"));
+		assertEquals(2, leaderManager.metrics.getMergeTimeouts());
+	}
+
+	@Test
+	public void upToDateMembersAreNotUpdated() {
+		merge();
+		leader.sendUpdates();
+		assertEquals(0, links.run());
+	}
+}
@@ -0,0 +1,128 @@
+package com.dysoft.chatter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+	TimingWheel wheel;
+	final List<String> ran = new ArrayList<String>();
+
+	@Before
+	public void setUp() {
+		wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+		wheel.expire(); // Makes this thread the owner
+	}
+
+	Manager.Task task(final String name) {
+		return new Manager.Task() {
+			public void run() {
+				ran.add(name);
+			}
+		};
+	}
+
+	/**
+	 * Expires the wheel until the given time has passed.
+	 */
+	void expireFor(long millis) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while(System.nanoTime() < end) {
+			wheel.expire();
+			Thread.sleep(1);
+		}
+		wheel.expire();
+	}
+
+	@Test
+	public void runsTimeoutsOnceDue() throws Exception {
+		long start = System.nanoTime();
+		TimingWheel.Timeout timeout = wheel.schedule(task("a"), 20, TimeUnit.MILLISECONDS);
+		assertEquals(0, wheel.expire());
+		assertEquals(1, wheel.size());
+
+		while(ran.isEmpty()) {
+			assertTrue("Never ran", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			wheel.expire();
+			Thread.sleep(1);
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertEquals(0, wheel.size());
+		assertEquals(-1, wheel.nextDelay());
+	}
+
+	@Test
+	public void waitsOutDeadlinesBeyondOneTurn() throws Exception {
+		wheel.schedule(task("late"), 30, TimeUnit.MILLISECONDS);
+		wheel.schedule(task("early"), 2, TimeUnit.MILLISECONDS);
+		assertTrue(wheel.nextDelay() <= TimeUnit.MILLISECONDS.toNanos(3)); // At most a tick late
+		expireFor(15);
+		assertEquals(1, ran.size());
+		assertEquals("early", ran.get(0));
+		expireFor(20);
+		assertEquals(2, ran.size());
+		assertEquals("late", ran.get(1));
+	}
+
+	@Test
+	public void cancelledTimeoutsDoNotRun() throws Exception {
+		TimingWheel.Timeout timeout = wheel.schedule(task("a"), 2, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertEquals(0, wheel.size());
+		expireFor(10);
+		assertTrue(ran.isEmpty());
+		assertFalse(timeout.isExpired());
+	}
+
+	@Test
+	public void armsAndCancelsFromOtherThreads() throws Exception {
+		final List<TimingWheel.Timeout> armed = new ArrayList<TimingWheel.Timeout>();
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				armed.add(wheel.schedule(task("kept"), 2, TimeUnit.MILLISECONDS));
+				wheel.schedule(task("cancelled"), 2, TimeUnit.MILLISECONDS).cancel();
+			}
+		};
+		other.start();
+		other.join();
+		assertEquals(0, wheel.size());
+
+		expireFor(10);
+		assertEquals(1, ran.size());
+		assertEquals("kept", ran.get(0));
+		assertTrue(armed.get(0).isExpired());
+	}
+
+	@Test
+	public void timeoutsArmedByATaskRunLater() throws Exception {
+		wheel.schedule(new Manager.Task() {
+			public void run() throws IOException {
+				wheel.schedule(task("second"), 0, TimeUnit.MILLISECONDS);
+				throw new IOException("Task failed");
+			}
+		}, 1, TimeUnit.MILLISECONDS);
+		wheel.schedule(task("first"), 1, TimeUnit.MILLISECONDS);
+
+		while(ran.isEmpty()) {
+			Thread.sleep(1);
+			wheel.expire();
+		}
+		assertEquals(1, ran.size()); // The failed task did not stop its neighbour
+		assertEquals(1, wheel.size());
+		expireFor(5);
+		assertEquals(2, ran.size());
+		assertEquals("second", ran.get(1));
+	}
+}
@@ -0,0 +1,68 @@
+package com.dysoft.chatter;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class VarintTest {
+	final static int[] INTS = { 0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+	final static long[] LONGS = { 0, 1, 127, 128, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+
+	@Test
+	public void intRoundTrip() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(int v : INTS) {
+			buf.clear();
+			Varint.putInt(buf, v);
+			assertEquals("size of " + v, Varint.size(v), buf.position());
+			buf.flip();
+			assertEquals(v, Varint.getInt(buf));
+			assertEquals(0, buf.remaining());
+		}
+	}
+
+	@Test
+	public void longRoundTrip() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long v : LONGS) {
+			buf.clear();
+			Varint.putLong(buf, v);
+			buf.flip();
+			assertEquals(v, Varint.getLong(buf));
+			assertEquals(0, buf.remaining());
+		}
+	}
+
+	@Test
+	public void signedIntsStayShort() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(int v : INTS) {
+			buf.clear();
+			Varint.putSignedInt(buf, v);
+			buf.flip();
+			assertEquals(v, Varint.getSignedInt(buf));
+		}
+		buf.clear();
+		Varint.putSignedInt(buf, -1);
+		assertEquals(1, buf.position());
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void truncated() {
+		ByteBuffer buf = ByteBuffer.wrap(new byte[] { (byte)0x80, (byte)0x80 });
+		Varint.getInt(buf);
+	}
+
+	@Test
+	public void overlongIntStopsAtFiveBytes() {
+		byte[] bytes = new byte[10];
+		Arrays.fill(bytes, (byte)0xff);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		Varint.getInt(buf);
+		assertEquals(5, buf.position());
+	}
+}
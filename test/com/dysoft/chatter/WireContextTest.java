@@ -0,0 +1,94 @@
+package com.dysoft.chatter;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WireContextTest {
+	final PartyCodec codec = new PartyCodec();
+
+	@Test
+	public void sendsRepeatedNamesAsIndices() throws Exception {
+		WireContext out = new WireContext(new NameCache(16), true);
+		WireContext in = new WireContext(new NameCache(16), true);
+		ByteBuffer buf = ByteBuffer.allocate(256);
+
+		PartyMember alice = new PartyMember("alice");
+		out.encodeMember(buf, alice);
+		int first = buf.position();
+		out.encodeMember(buf, alice);
+		int second = buf.position() - first;
+		out.encodeMember(buf, new PartyMember("bob"));
+		assertTrue(second < first);
+
+		buf.flip();
+		PartyMember a1 = in.decodeMember(buf, codec);
+		PartyMember a2 = in.decodeMember(buf, codec);
+		PartyMember b = in.decodeMember(buf, codec);
+		assertEquals("alice", a1.name);
+		assertSame(a1.name, a2.name);
+		assertEquals("bob", b.name);
+		assertEquals(0, buf.remaining());
+	}
+
+	@Test
+	public void withoutDictionaryNamesAreAlwaysSentInFull() throws Exception {
+		WireContext out = new WireContext(new NameCache(16), false);
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		PartyMember alice = new PartyMember("alice");
+		out.encodeMember(buf, alice);
+		int first = buf.position();
+		out.encodeMember(buf, alice);
+		assertEquals(first * 2, buf.position());
+
+		buf.flip();
+		WireContext in = new WireContext(new NameCache(16), false);
+		assertEquals("alice", in.decodeMember(buf, codec).name);
+		assertEquals("alice", in.decodeMember(buf, codec).name);
+	}
+
+	@Test(expected = Message.CodecException.class)
+	public void unknownIndex() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		Varint.putInt(buf, (3 << 1) | 1);
+		Varint.putInt(buf, 0);
+		buf.flip();
+		new WireContext(new NameCache(16), true).decodeMember(buf, codec);
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void nameLongerThanMessage() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		Varint.putInt(buf, 100 << 1);
+		buf.put((byte)'a');
+		buf.flip();
+		new WireContext(new NameCache(16), true).decodeMember(buf, codec);
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void extraLongerThanMessage() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		Varint.putInt(buf, 1 << 1);
+		buf.put((byte)'a');
+		Varint.putInt(buf, 50);
+		buf.flip();
+		new WireContext(new NameCache(16), true).decodeMember(buf, codec);
+	}
+
+	@Test
+	public void negotiatesFromHello() {
+		WireContext context = new WireContext(new NameCache(16), true);
+		context.negotiate(new HelloMessage(Message.MAX_VERSION + 5, HelloMessage.INFLATE, 1));
+		assertEquals(Message.MAX_VERSION, context.getVersion());
+		assertTrue(context.peerInflates);
+
+		context.negotiate(new HelloMessage(0, 0, 1));
+		assertEquals(Message.VERSION, context.getVersion());
+		assertTrue(!context.peerInflates);
+	}
+}